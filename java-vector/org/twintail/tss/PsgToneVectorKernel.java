@@ -0,0 +1,79 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * class PsgToneVectorKernel
+ *
+ * This class implements PsgToneKernel with the Vector API. Three tone
+ * counters run in lanes of one vector, and the lane mask of counters
+ * which exceed their steps toggles the tone outputs without any branch.
+ * The fourth lane never advances, and never toggles.
+ * This class requires the jdk.incubator.vector module, so it lives in the
+ * java-vector source root, apart from the java tree shared with Android.
+ * Compile it with --add-modules jdk.incubator.vector against the java
+ * tree, and run with the same option. PsgDeviceChannel loads it by name
+ * only if setVectorKernel() enables it.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+final class PsgToneVectorKernel implements PsgToneKernel {
+    private static final VectorSpecies<Integer> SPECIES =
+        IntVector.SPECIES_128;
+    private static final int CHANNELS = 3;
+    private final int[] lanes = new int[SPECIES.length()];
+
+    /**
+     * @see PsgToneKernel
+     * @param buffer buffer to store outputs
+     * @param offset offset to store the first output
+     * @param samples samples to generate
+     * @param count tone counters of three channels, updated in place
+     * @param step tone steps of three channels
+     * @param base value to advance counters at every sample
+     * @param outputs tone outputs, bit n for channel n
+     * @param table mixed output indexed by tone outputs
+     * @return tone outputs after the last sample
+     */
+    public int generate(final short[] buffer, final int offset,
+            final int samples, final int[] count, final int[] step,
+            final int base, final int outputs, final short[] table) {
+        for (int i = 0; i < CHANNELS; i++) {
+            lanes[i] = base;
+        }
+        lanes[CHANNELS] = 0;
+        IntVector bases = IntVector.fromArray(SPECIES, lanes, 0);
+        for (int i = 0; i < CHANNELS; i++) {
+            lanes[i] = step[i];
+        }
+        lanes[CHANNELS] = Integer.MAX_VALUE;
+        IntVector steps = IntVector.fromArray(SPECIES, lanes, 0);
+        for (int i = 0; i < CHANNELS; i++) {
+            lanes[i] = count[i];
+        }
+        lanes[CHANNELS] = 0;
+        IntVector counts = IntVector.fromArray(SPECIES, lanes, 0);
+
+        int bits = outputs;
+        int end = offset + samples;
+        for (int i = offset; i < end; i++) {
+            counts = counts.add(bases);
+            VectorMask<Integer> edges =
+                counts.compare(VectorOperators.GT, steps);
+            counts = counts.sub(steps, edges);
+            bits ^= (int) edges.toLong();
+            buffer[i] = table[bits];
+        }
+
+        counts.intoArray(lanes, 0);
+        for (int i = 0; i < CHANNELS; i++) {
+            count[i] = lanes[i];
+        }
+        return bits;
+    }
+}
@@ -12,6 +12,7 @@ package org.twintail;
  */
 public abstract class Log {
     private static Log log = null;
+    private static final ThreadLocal<Log> THREAD_LOG = new ThreadLocal<Log>();
 
     /**
      * Set default log instance.
@@ -22,10 +23,28 @@ public abstract class Log {
     }
 
     /**
-     * Get default log instance.
-     * @return default Log instance
+     * Set log instance for the current thread.
+     * It overrides the default log instance on the thread, so that
+     * concurrent jobs can route their messages separately.
+     * @param newLog Log instance to set, or null to use the default one
+     */
+    public static void setThreadLog(final Log newLog) {
+        if (null == newLog) {
+            THREAD_LOG.remove();
+        } else {
+            THREAD_LOG.set(newLog);
+        }
+    }
+
+    /**
+     * Get log instance for the current thread.
+     * @return thread Log instance if it is set, otherwise default one
      */
     public static Log getLog() {
+        Log threadLog = THREAD_LOG.get();
+        if (null != threadLog) {
+            return threadLog;
+        }
         return log;
     }
 
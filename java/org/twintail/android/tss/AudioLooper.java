@@ -6,7 +6,7 @@ package org.twintail.android.tss;
 import android.media.AudioManager;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
-import android.media.AudioTrack.OnPlaybackPositionUpdateListener;
+import android.os.Process;
 import android.util.Log;
 import org.twintail.tss.Channel;
 
@@ -16,58 +16,93 @@ import org.twintail.tss.Channel;
  *
  * This class provides an audio output stream for real time
  * sound rendering.
+ * A dedicated render thread running at the urgent audio priority
+ * generates blocks and writes them to the AudioTrack in blocking mode,
+ * so that the track's own buffer paces rendering. Rendering stops while
+ * the looper is paused.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
-public final class AudioLooper implements OnPlaybackPositionUpdateListener {
+public final class AudioLooper {
     private static final String TAG = "AudioLooper";
-    private static final int SAMPLE_RATE_IN_HZ = 44100;
     private static final int BYTES_PER_CHANNEL = 2;
     private static final int NUM_OF_CHANNELS = 2;
     private static final int FRAME_SIZE_IN_BYTES =
         BYTES_PER_CHANNEL * NUM_OF_CHANNELS;
+    private static final int TRACK_BUFFER_BLOCKS = 2;
     private static final int DEFAULT_BUFFER_SIZE_IN_BYTES = 8192;
-    private int bufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
-    private int bufferSizeInShorts;	// bufferSizeInBytes / BYTES_PER_CHANNEL;
-    private int bufferSizeInFrames;	// bufferSizeInBytes / FRAME_SIZE_IN_BYTES;
+    private int blockSizeInBytes;
+    private int blockSizeInShorts;	// blockSizeInBytes / BYTES_PER_CHANNEL;
+    private int sampleRate;
 
     private AudioTrack track = null;
-    private Channel channel = null;
+    private volatile Channel channel = null;
     private short[] nullBuffer = null;
+    private short[] stereoBuffer = null;
+    private final Object lock = new Object();
+    private boolean paused = false;
+    private boolean stopped = false;
+    private Thread renderer = null;
 
     /**
      * Class constructor.
+     * Use the native output sample rate to avoid resampling in the system.
      */
     public AudioLooper() {
+        this(AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC));
+    }
+
+    /**
+     * Class constructor.
+     * @param rate output sample rate in Hz
+     */
+    public AudioLooper(final int rate) {
+        sampleRate = rate;
         int minBufferSizeInBytes = AudioTrack.getMinBufferSize(
-                SAMPLE_RATE_IN_HZ,
+                sampleRate,
                 AudioFormat.CHANNEL_CONFIGURATION_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT);
         Log.i(TAG, "MinBufferSize: " + minBufferSizeInBytes);
         Log.i(TAG, "NativeSampleRate: "
                 + AudioTrack.getNativeOutputSampleRate(
                         AudioManager.STREAM_MUSIC));
-
-        if (bufferSizeInBytes < minBufferSizeInBytes) {
-            bufferSizeInBytes = minBufferSizeInBytes;
+        Log.i(TAG, "SampleRate: " + sampleRate);
+        if (minBufferSizeInBytes <= 0) {
+            // ERROR or ERROR_BAD_VALUE, e.g., for an unsupported rate.
+            minBufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
         }
-        Log.i(TAG, "bufferSizeInBytes: " + bufferSizeInBytes);
-        bufferSizeInShorts = bufferSizeInBytes / BYTES_PER_CHANNEL;
-        bufferSizeInFrames = bufferSizeInBytes / FRAME_SIZE_IN_BYTES;
-        nullBuffer = new short[bufferSizeInShorts];
+
+        // Render one minimum buffer at a time, and let the track hold
+        // TRACK_BUFFER_BLOCKS of them so that a block write always blocks
+        // while the previous block is being played.
+        blockSizeInBytes = minBufferSizeInBytes
+                - (minBufferSizeInBytes % FRAME_SIZE_IN_BYTES);
+        blockSizeInShorts = blockSizeInBytes / BYTES_PER_CHANNEL;
+        Log.i(TAG, "blockSizeInBytes: " + blockSizeInBytes);
+        nullBuffer = new short[blockSizeInShorts];
+        stereoBuffer = new short[blockSizeInShorts];
 
         track = new AudioTrack(AudioManager.STREAM_MUSIC,
-                SAMPLE_RATE_IN_HZ,
+                sampleRate,
                 AudioFormat.CHANNEL_CONFIGURATION_STEREO,
                 AudioFormat.ENCODING_PCM_16BIT,
-                bufferSizeInBytes,
+                blockSizeInBytes * TRACK_BUFFER_BLOCKS,
                 AudioTrack.MODE_STREAM);
-        track.setPlaybackPositionUpdateListener(this);
-        int rc = track.setPositionNotificationPeriod(bufferSizeInFrames);
-        Log.i(TAG, "setPositionNotificationPeriod(): " + rc);
-
         track.play();
-        track.write(nullBuffer, 0, nullBuffer.length);
-        track.write(nullBuffer, 0, nullBuffer.length);
+
+        renderer = new Thread(new Runnable() {
+            public void run() {
+                render();
+            }
+        }, TAG);
+        renderer.start();
+    }
+
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
     }
 
     /**
@@ -75,29 +110,84 @@ public final class AudioLooper implements OnPlaybackPositionUpdateListener {
      * @param newChannel sound generator
      */
     public void setChannel(final Channel newChannel) {
-        newChannel.setBufferLength(bufferSizeInShorts);
+        newChannel.setSampleRate(sampleRate);
+        newChannel.setBufferLength(blockSizeInShorts);
         channel = newChannel;
     }
 
     /**
-     * @see AudioTrack.OnPlaybackPositionUpdateListener
-     * @param audioTrack caller AudioTrack object
+     * Pause audio output. The render thread sleeps until resume() is
+     * called, and the channel is not rendered meanwhile.
      */
-    public void onMarkerReached(final AudioTrack audioTrack) {
-        Log.e(TAG, "onMarkerReached(): should not be reached");
+    public void pause() {
+        synchronized (lock) {
+            paused = true;
+            track.pause();
+        }
+    }
+
+    /**
+     * Resume audio output.
+     */
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            track.play();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the render thread and release the AudioTrack.
+     * This object can not be used any more.
+     */
+    public void release() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+        track.stop();
+        try {
+            renderer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        track.release();
     }
 
     /**
-     * @see AudioTrack.OnPlaybackPositionUpdateListener
-     * @param audioTrack caller AudioTrack object
+     * Render blocks and write them to the track until released.
      */
-    public void onPeriodicNotification(final AudioTrack audioTrack) {
-        Log.v(TAG, "onPeriodicNotification()");
-        if (null != channel) {
-            channel.generate(bufferSizeInShorts);
-            audioTrack.write(channel.getBuffer(), 0, bufferSizeInShorts);
-        } else {
-            audioTrack.write(nullBuffer, 0, bufferSizeInShorts);
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        for (;;) {
+            synchronized (lock) {
+                while (paused && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "render(): interrupted");
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+            Channel current = channel;
+            if (null != current) {
+                current.generate(blockSizeInShorts);
+                short[] buffer = current.getBuffer();
+                if (current.getLayout() == Channel.LAYOUT_MONO) {
+                    for (int i = 0; i < blockSizeInShorts; i++) {
+                        stereoBuffer[i] = buffer[i >> 1];
+                    }
+                    buffer = stereoBuffer;
+                }
+                track.write(buffer, 0, blockSizeInShorts);
+            } else {
+                track.write(nullBuffer, 0, blockSizeInShorts);
+            }
         }
     }
 }
@@ -3,41 +3,67 @@
  */
 package org.twintail.j2se.tss;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.LineUnavailableException;
 import org.twintail.tss.Channel;
+import org.twintail.tss.MasterChannel;
 
 /**
  * class AudioLooper
  *
  * This class provides an audio output stream for real time
  * sound rendering.
+ * A render thread fills a lock-free PCM ring buffer up to the target fill
+ * level, and the looper thread drains it into the line, so that a slow
+ * render pass or a GC pause does not stall the line directly.
+ * The line is opened in the native byte order, and a MasterChannel mixes
+ * straight into a ShortBuffer view of each ring block.
+ * A channel registered by setChannel() is handed over to the render thread,
+ * which configures it between blocks.
+ * If the ring is empty, the looper thread waits while the line still holds
+ * audio, and feeds silence only when the line is nearly drained.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class AudioLooper extends Thread {
     private static final String TAG = "AudioLooper";
-    private static final float SAMPLE_RATE_IN_HZ = 44100;
+    private static final int DEFAULT_SAMPLE_RATE_IN_HZ =
+        MasterChannel.SAMPLE_FREQUENCY;
     private static final int BYTES_PER_CHANNEL = 2;
     private static final int BITS_PER_CHANNEL = 16;
     private static final int NUM_OF_CHANNELS = 2;
-    private static final int BUFFER_SIZE_IN_BYTES = 8192;
-    private static final int BUFFER_SIZE_IN_SHORTS =
-        BUFFER_SIZE_IN_BYTES / BYTES_PER_CHANNEL;
-    private static final int BITS_PER_BYTE = 8;
-    private static final int SHORT_MASK = 0xffff;
-    private static final AudioFormat AUDIO_FORMAT =
-        new AudioFormat(SAMPLE_RATE_IN_HZ,
-            BITS_PER_CHANNEL,
-            NUM_OF_CHANNELS,
-            true,
-            true);
+    private static final int BYTES_PER_FRAME =
+        BYTES_PER_CHANNEL * NUM_OF_CHANNELS;
+    private static final int DEFAULT_LINE_BUFFER_SIZE_IN_BYTES = 8192;
+    private static final int BLOCK_SIZE_IN_BYTES = 1024;
+    private static final int BLOCK_SIZE_IN_SHORTS =
+        BLOCK_SIZE_IN_BYTES / BYTES_PER_CHANNEL;
+    private static final int RING_BLOCKS = 32;
+    private static final int DEFAULT_TARGET_BLOCKS = 8;
+    private static final long NSEC_PER_SEC = 1000000000L;
 
+    private int sampleRate = DEFAULT_SAMPLE_RATE_IN_HZ;
     private SourceDataLine line = null;
-    private Channel channel = null;
-    private byte[] buffer = new byte[BUFFER_SIZE_IN_BYTES];
+    private volatile Channel channel = null;
+    private final AtomicReference<Channel> pendingChannel =
+        new AtomicReference<Channel>();
+    private final PcmRingBuffer ring =
+        new PcmRingBuffer(BLOCK_SIZE_IN_BYTES, RING_BLOCKS);
+    private final ShortBuffer[] blocks = new ShortBuffer[RING_BLOCKS];
+    private final byte[] silence = new byte[BLOCK_SIZE_IN_BYTES];
+    private volatile int targetBlocks = DEFAULT_TARGET_BLOCKS;
+    private volatile long underruns = 0;
+    private volatile long overruns = 0;
+    private volatile long throttles = 0;
+    private long blockNanos = 0;
+    private Thread renderer = null;
 
     /**
      * Class constructor.
@@ -45,26 +71,180 @@ public final class AudioLooper extends Thread {
      * @see SoundDataLine
      */
     public AudioLooper() throws LineUnavailableException {
+        this(DEFAULT_SAMPLE_RATE_IN_HZ);
+    }
+
+    /**
+     * Class constructor.
+     * @param rate output sample rate in Hz
+     * @throws LineUnavailableException Exception happened to get SoundDataLine
+     * @see SoundDataLine
+     */
+    public AudioLooper(final int rate) throws LineUnavailableException {
+        this(rate, DEFAULT_LINE_BUFFER_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Class constructor.
+     * @param rate output sample rate in Hz
+     * @param lineBufferSizeInBytes line buffer size in bytes
+     * @throws LineUnavailableException Exception happened to get SoundDataLine
+     * @see SoundDataLine
+     */
+    public AudioLooper(final int rate, final int lineBufferSizeInBytes)
+            throws LineUnavailableException {
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> J2SE Audio Looper");
 
-        line = AudioSystem.getSourceDataLine(AUDIO_FORMAT);
+        sampleRate = rate;
+        blockNanos = NSEC_PER_SEC * BLOCK_SIZE_IN_BYTES
+                / BYTES_PER_FRAME / sampleRate;
+        ByteOrder order = ByteOrder.nativeOrder();
+        ByteBuffer bytes = ByteBuffer.wrap(ring.getBuffer());
+        for (int i = 0; i < RING_BLOCKS; i++) {
+            bytes.limit((i + 1) * BLOCK_SIZE_IN_BYTES);
+            bytes.position(i * BLOCK_SIZE_IN_BYTES);
+            blocks[i] = bytes.slice().order(order).asShortBuffer();
+        }
+        AudioFormat format = new AudioFormat(sampleRate,
+                BITS_PER_CHANNEL,
+                NUM_OF_CHANNELS,
+                true,
+                ByteOrder.BIG_ENDIAN == order);
+        line = AudioSystem.getSourceDataLine(format);
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> " + line.toString());
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> DefaultBufferSize: " + line.getBufferSize());
-        line.open(AUDIO_FORMAT, BUFFER_SIZE_IN_BYTES);
+        line.open(format, lineBufferSizeInBytes);
         Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(TAG
                 + "> ConfiguredBufferSize: " + line.getBufferSize());
     }
 
     /**
-     * Register sound generator.
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the number of blocks the render thread keeps ready in the ring
+     * buffer. Larger values tolerate longer stalls, but add latency.
+     * @param blocks target fill level in blocks, from 1 to getRingBlocks()
+     */
+    public void setTargetBlocks(final int blocks) {
+        targetBlocks = Math.max(1, Math.min(blocks, RING_BLOCKS));
+    }
+
+    /**
+     * Get ring buffer capacity.
+     * @return the number of blocks in the ring buffer
+     */
+    public int getRingBlocks() {
+        return RING_BLOCKS;
+    }
+
+    /**
+     * Get ring buffer block size.
+     * @return block size in bytes
+     */
+    public int getBlockSize() {
+        return BLOCK_SIZE_IN_BYTES;
+    }
+
+    /**
+     * Get how many times the line was fed with silence because the render
+     * thread could not keep up until the line was nearly drained.
+     * @return underrun count
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Get how many times the render thread found the whole ring buffer
+     * filled up, and could not acquire a block to write.
+     * @return overrun count
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Get how many times the render thread found the ring buffer filled up
+     * to the target level, and waited for the looper thread to drain it.
+     * This happens in steady state, and is not an error.
+     * @return throttle count
+     */
+    public long getThrottles() {
+        return throttles;
+    }
+
+    /**
+     * Register sound generator. The render thread takes it over before
+     * rendering the next block, so that the current channel is never
+     * reconfigured in the middle of generate().
      * @param newChannel sound generator
      */
     public void setChannel(final Channel newChannel) {
-        newChannel.setBufferLength(BUFFER_SIZE_IN_SHORTS);
-        channel = newChannel;
+        pendingChannel.set(newChannel);
+    }
+
+    /**
+     * Take over a channel registered by setChannel(), if any.
+     * @return channel to render
+     */
+    private Channel updateChannel() {
+        Channel newChannel = pendingChannel.getAndSet(null);
+        if (null != newChannel) {
+            newChannel.setSampleRate(sampleRate);
+            newChannel.setBufferLength(BLOCK_SIZE_IN_SHORTS);
+            channel = newChannel;
+        }
+        return channel;
+    }
+
+    /**
+     * Render blocks into the ring buffer forever.
+     */
+    private void render() {
+        for (;;) {
+            Channel current = updateChannel();
+            if (null == current) {
+                LockSupport.parkNanos(blockNanos / 2);
+                continue;
+            }
+            if (ring.available() >= targetBlocks) {
+                throttles = throttles + 1;
+                LockSupport.parkNanos(blockNanos / 2);
+                continue;
+            }
+            int base = ring.acquireWrite();
+            if (base < 0) {
+                overruns = overruns + 1;
+                LockSupport.parkNanos(blockNanos / 2);
+                continue;
+            }
+            ShortBuffer block = blocks[base / BLOCK_SIZE_IN_BYTES];
+            if (current instanceof MasterChannel) {
+                MasterChannel master = (MasterChannel) current;
+                master.generate(BLOCK_SIZE_IN_SHORTS, block);
+            } else {
+                current.generate(BLOCK_SIZE_IN_SHORTS);
+                short[] channelBuffer = current.getBuffer();
+                if (current.getLayout() == Channel.LAYOUT_MONO) {
+                    for (int i = 0; i < BLOCK_SIZE_IN_SHORTS; i++) {
+                        block.put(i, channelBuffer[i >> 1]);
+                    }
+                } else {
+                    block.clear();
+                    block.put(channelBuffer, 0, BLOCK_SIZE_IN_SHORTS);
+                }
+            }
+            ring.commitWrite();
+        }
     }
 
     /**
@@ -74,18 +254,33 @@ public final class AudioLooper extends Thread {
      * It blocks and never be back.
      */
     public void run() {
+        renderer = new Thread(new Runnable() {
+            public void run() {
+                render();
+            }
+        }, TAG + "Renderer");
+        renderer.setDaemon(true);
+        renderer.setPriority(Thread.MAX_PRIORITY);
+        renderer.start();
         line.start();
+        byte[] buffer = ring.getBuffer();
         for (;;) {
-            if (null != channel) {
-                channel.generate(BUFFER_SIZE_IN_SHORTS);
-                short[] channelBuffer = channel.getBuffer();
-                for (int offset = 0; offset < BUFFER_SIZE_IN_SHORTS; offset++) {
-                    int value = channelBuffer[offset] & SHORT_MASK;
-                    buffer[offset * 2 + 0] = (byte) (value >> BITS_PER_BYTE);
-                    buffer[offset * 2 + 1] = (byte) value;
+            int base = ring.acquireRead();
+            if (base < 0) {
+                int queued = line.getBufferSize() - line.available();
+                if (queued >= BLOCK_SIZE_IN_BYTES) {
+                    // The line covers a short stall of the render thread.
+                    LockSupport.parkNanos(blockNanos / 2);
+                    continue;
+                }
+                if (null != channel) {
+                    underruns = underruns + 1;
                 }
-                line.write(buffer, 0, BUFFER_SIZE_IN_SHORTS * 2);
+                line.write(silence, 0, BLOCK_SIZE_IN_BYTES);
+                continue;
             }
+            line.write(buffer, base, BLOCK_SIZE_IN_BYTES);
+            ring.commitRead();
         }
     }
 }
@@ -0,0 +1,420 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.twintail.Log;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.OfflineRenderer;
+import org.twintail.tss.VgmPlayer;
+
+/**
+ * class BatchRenderer
+ *
+ * This class renders many VGM/VGZ files to WAV files in parallel.
+ * Each file is rendered on a worker thread with its own MasterChannel,
+ * VgmPlayer and PsgDeviceChannel, and logs through its own Log instance.
+ * Information messages from jobs are dropped to keep reports readable.
+ * Output files mirror relative paths of collected input files, and a job
+ * whose output path is already taken by another job fails without writing.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class BatchRenderer {
+    private static final String TAG = "BatchRenderer";
+    private static final String VGM_SUFFIX = ".vgm";
+    private static final String VGZ_SUFFIX = ".vgz";
+    private static final String WAV_SUFFIX = ".wav";
+    private static final int DEFAULT_LOOPS = 1;
+    private static final int DEFAULT_MAX_SECONDS = 600;
+    private static final double NSEC_PER_SEC = 1000000000.0;
+
+    private final File outputDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int sampleRate = MasterChannel.SAMPLE_FREQUENCY;
+    private int loops = DEFAULT_LOOPS;
+    private int maxSeconds = DEFAULT_MAX_SECONDS;
+
+    /**
+     * class Result
+     *
+     * Rendering result of one file.
+     */
+    public static final class Result {
+        private final File file;
+        private final long samples;
+        private final long nanos;
+        private final String error;
+        private final int warnings;
+
+        /**
+         * Class constructor.
+         * @param source rendered file
+         * @param renderedSamples the number of rendered samples
+         * @param elapsedNanos elapsed time in nano seconds
+         * @param message error message, or null on success
+         * @param warningCount the number of warnings
+         */
+        Result(final File source, final long renderedSamples,
+                final long elapsedNanos, final String message,
+                final int warningCount) {
+            file = source;
+            samples = renderedSamples;
+            nanos = elapsedNanos;
+            error = message;
+            warnings = warningCount;
+        }
+
+        /**
+         * Get rendered file.
+         * @return rendered file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the number of rendered samples.
+         * @return rendered samples
+         */
+        public long getSamples() {
+            return samples;
+        }
+
+        /**
+         * Get rendering throughput.
+         * @return rendered samples per second
+         */
+        public double getSamplesPerSecond() {
+            if (0 == nanos) {
+                return 0;
+            }
+            return samples * NSEC_PER_SEC / nanos;
+        }
+
+        /**
+         * Check if rendering failed.
+         * @return true on failure
+         */
+        public boolean isFailed() {
+            return null != error;
+        }
+
+        /**
+         * Get error message.
+         * @return error message, or null on success
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Get the number of warnings logged while rendering.
+         * @return warning count
+         */
+        public int getWarnings() {
+            return warnings;
+        }
+    }
+
+    /**
+     * class JobLog
+     *
+     * Per-job log that prefixes messages with the file name, and remembers
+     * the last error to report. Warnings are only counted, since they do
+     * not fail the job.
+     */
+    private static final class JobLog extends Log {
+        private final Log log = new J2SELog();
+        private final String prefix;
+        private String lastError = null;
+        private int warnings = 0;
+
+        /**
+         * Class constructor.
+         * @param name job name
+         */
+        JobLog(final String name) {
+            prefix = name + "> ";
+        }
+
+        /**
+         * @see Log
+         * @param message fatal message
+         */
+        public void fatal(final String message) {
+            lastError = message;
+            log.fatal(prefix + message);
+        }
+
+        /**
+         * @see Log
+         * @param message error message
+         */
+        public void error(final String message) {
+            lastError = message;
+            log.error(prefix + message);
+        }
+
+        /**
+         * @see Log
+         * @param message warning message
+         */
+        public void warn(final String message) {
+            warnings++;
+            log.warn(prefix + message);
+        }
+    }
+
+    /**
+     * Class constructor.
+     * @param directory directory to write WAV files
+     */
+    public BatchRenderer(final File directory) {
+        outputDirectory = directory;
+    }
+
+    /**
+     * Set the number of worker threads.
+     * The default is the number of available processors.
+     * @param count the number of threads
+     */
+    public void setThreads(final int count) {
+        threads = count;
+    }
+
+    /**
+     * Set output sample rate.
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * Set the number of loops to render for looped songs.
+     * @param count the number of loops
+     */
+    public void setLoops(final int count) {
+        loops = count;
+    }
+
+    /**
+     * Set maximum length to render for each file.
+     * @param seconds maximum length in seconds
+     */
+    public void setMaxSeconds(final int seconds) {
+        maxSeconds = seconds;
+    }
+
+    /**
+     * Get a file name without its suffix.
+     * @param file file
+     * @return base name
+     */
+    public static String getBaseName(final File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return name;
+    }
+
+    /**
+     * Collect VGM/VGZ files in a directory recursively.
+     * @param directory directory to search
+     * @param path output path of the directory, relative to the output
+     *             directory, and ending with a separator unless empty
+     * @param files list to add found files
+     * @param names list to add output paths of found files, relative to
+     *              the output directory and without suffixes
+     */
+    public static void collect(final File directory, final String path,
+            final List<File> files, final List<String> names) {
+        File[] entries = directory.listFiles();
+        if (null == entries) {
+            return;
+        }
+        Arrays.sort(entries);
+        for (File entry : entries) {
+            String name = entry.getName().toLowerCase();
+            if (entry.isDirectory()) {
+                collect(entry, path + entry.getName() + File.separator,
+                        files, names);
+            } else if (name.endsWith(VGM_SUFFIX) || name.endsWith(VGZ_SUFFIX)) {
+                files.add(entry);
+                names.add(path + getBaseName(entry));
+            }
+        }
+    }
+
+    /**
+     * Render one file. Called on a worker thread.
+     * @param file file to render
+     * @param name output path relative to the output directory, without
+     *             the suffix
+     * @return rendering result
+     */
+    private Result renderFile(final File file, final String name) {
+        JobLog log = new JobLog(file.getName());
+        Log.setThreadLog(log);
+        long start = System.nanoTime();
+        try {
+            File output = new File(outputDirectory, name + WAV_SUFFIX);
+            File parent = output.getParentFile();
+            if (null != parent) {
+                parent.mkdirs();
+            }
+            // VgmPlayer maps a FileInputStream directly.
+            InputStream input = new FileInputStream(file);
+            RandomAccessFile wav = new RandomAccessFile(output, "rw");
+            long samples = -1;
+            try {
+                FileChannel channel = wav.getChannel();
+                channel.truncate(0);
+                OfflineRenderer renderer = new OfflineRenderer();
+                renderer.setSampleRate(sampleRate);
+                samples = renderer.render(new VgmPlayer(), input,
+                        (long) sampleRate * maxSeconds, loops, channel);
+            } finally {
+                wav.close();
+                input.close();
+                if (samples < 0) {
+                    output.delete();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            if (samples < 0) {
+                String error = log.lastError;
+                if (null == error) {
+                    error = "unsupported file";
+                }
+                return new Result(file, 0, nanos, error, log.warnings);
+            }
+            return new Result(file, samples, nanos, null, log.warnings);
+        } catch (Exception e) {
+            return new Result(file, 0, System.nanoTime() - start,
+                    e.toString(), log.warnings);
+        } finally {
+            Log.setThreadLog(null);
+        }
+    }
+
+    /**
+     * Render files on a bounded worker pool.
+     * A file whose output path is already used by a former file fails.
+     * @param files files to render
+     * @param names output paths of files, relative to the output directory
+     *              and without suffixes
+     * @return rendering results in the same order as files
+     * @throws InterruptedException interrupted while waiting for workers
+     */
+    public List<Result> render(final List<File> files,
+            final List<String> names) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, File> outputs = new HashMap<String, File>();
+            List<Future<Result>> futures =
+                new ArrayList<Future<Result>>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                final File file = files.get(i);
+                final String name = names.get(i);
+                if (outputs.containsKey(name)) {
+                    futures.add(null);
+                    continue;
+                }
+                outputs.put(name, file);
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return renderFile(file, name);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(files.size());
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Result> future = futures.get(i);
+                if (null == future) {
+                    String output = names.get(i) + WAV_SUFFIX;
+                    results.add(new Result(files.get(i), 0, 0, output
+                            + " is also the output of "
+                            + outputs.get(names.get(i)), 0));
+                    continue;
+                }
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(files.get(i), 0, 0,
+                            e.getCause().toString(), 0));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Main to run batch rendering.
+     * @param args output directory followed by input files or directories
+     * @throws InterruptedException interrupted while waiting for workers
+     */
+    public static void main(final String[] args)
+            throws InterruptedException {
+        Log.setLog(new J2SELog());
+        if (args.length < 2) {
+            Log.getLog().error(TAG + "> usage: BatchRenderer <output dir>"
+                    + " <input file or dir>...");
+            return;
+        }
+        List<File> files = new ArrayList<File>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            if (file.isDirectory()) {
+                collect(file, "", files, names);
+            } else {
+                files.add(file);
+                names.add(getBaseName(file));
+            }
+        }
+        BatchRenderer renderer = new BatchRenderer(new File(args[0]));
+        long start = System.nanoTime();
+        List<Result> results = renderer.render(files, names);
+        long nanos = System.nanoTime() - start;
+        long samples = 0;
+        int failures = 0;
+        for (Result result : results) {
+            samples += result.getSamples();
+            if (result.isFailed()) {
+                failures++;
+                Log.getLog().warn(TAG + "> " + result.getFile()
+                        + ": FAILED: " + result.getError());
+            } else {
+                Log.getLog().info(TAG + "> " + result.getFile() + ": "
+                        + result.getSamples() + " samples, "
+                        + (long) result.getSamplesPerSecond()
+                        + " samples/sec, " + result.getWarnings()
+                        + " warnings");
+            }
+        }
+        Log.getLog().info(TAG + "> " + results.size() + " files, "
+                + failures + " failures, "
+                + (long) (samples * NSEC_PER_SEC / Math.max(1, nanos))
+                + " samples/sec in total");
+    }
+}
@@ -0,0 +1,560 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.twintail.Log;
+import org.twintail.cpu.Cpu6502;
+import org.twintail.cpu.Memory;
+import org.twintail.tss.Device;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.PsgDeviceChannel;
+import org.twintail.tss.PsgGroupChannel;
+import org.twintail.tss.VgmPlayer;
+
+/**
+ * class Benchmark
+ *
+ * This class measures hot paths of the sound system and the CPU emulator
+ * without any sound device, network or external file. Every fixture,
+ * i.e., register settings, VGM stream and 6502 program, is synthesized in
+ * memory, so that results are comparable across changes and machines.
+ * Each case is warmed up, then measured for several fixed time iterations,
+ * and reported as operations per second. Logs from the measured code are
+ * muted, since they would be measured too.
+ * Usage: Benchmark [case name prefix] [iteration msec]
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class Benchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final int DEFAULT_ITERATION_MSEC = 1000;
+    private static final long NSEC_PER_MSEC = 1000000L;
+    private static final double NSEC_PER_SEC = 1000000000.0;
+    private static final int BUFFER_LENGTH = 4096;
+    private static final int SHORTS_PER_SAMPLE = 2;
+    private static final int[] MASTER_CHANNELS = { 1, 4, 16 };
+    private static final int GROUP_CHIPS = 4;
+    private static final int AY_TP_A = 0x0fe;
+    private static final int AY_TP_B = 0x17d;
+    private static final int AY_TP_C = 0x1fc;
+    private static final int AY_NOISE_TP = 0x0a;
+    private static final int AY_MIXER_TONE_ABC_NOISE_C = 0x18;
+    private static final int AY_MIXER_TONE_ABC = 0x38;
+    private static final int[] AY_DENSE_TP = { 0x003, 0x005, 0x007 };
+    private static final int AY_TP_REGISTERS = 2;
+    private static final int AY_VOLUME = 0x0f;
+    private static final int SN_LATCH = 0x80;
+    private static final int SN_CHANNEL_SHIFT = 5;
+    private static final int SN_VOLUME_LATCH = 0x10;
+    private static final int SN_NOISE_CHANNEL = 3;
+    private static final int SN_NOISE_WHITE = 0x04;
+    private static final int SN_DATA_SHIFT = 4;
+    private static final int SN_LOW_MASK = 0x0f;
+    private static final int SN_HIGH_MASK = 0x3f;
+    private static final int[] SN_TP = { 0x0fe, 0x17d, 0x1fc };
+    private static final int VGM_HEADER_SIZE = 0x40;
+    private static final int VGM_EOF_OFFSET = 0x04;
+    private static final int VGM_VERSION_OFFSET = 0x08;
+    private static final int VGM_VERSION = 0x00000150;
+    private static final int VGM_SN_CLOCK_OFFSET = 0x0c;
+    private static final int VGM_TOTAL_SAMPLES_OFFSET = 0x18;
+    private static final int VGM_LOOP_OFFSET_OFFSET = 0x1c;
+    private static final int VGM_LOOP_SAMPLES_OFFSET = 0x20;
+    private static final int VGM_IDENT = 0x206d6756; // "Vgm "
+    private static final int VGM_CMD_WRITE_SN = 0x50;
+    private static final int VGM_CMD_WAIT_735 = 0x62;
+    private static final int VGM_CMD_EOD = 0x66;
+    private static final int VGM_FRAMES = 600;
+    private static final int VGM_WRITES_PER_FRAME = 8;
+    private static final int VGM_SAMPLES_PER_FRAME = 735;
+    private static final int VGM_SEEKS = 256;
+    private static final long VGM_SEEK_STRIDE = 7919;
+    private static final int REGISTER_WRITES = 4096;
+    private static final int AY_CHANNELS = 3;
+    private static final int UINT_SIZE = 4;
+    private static final int BYTE_BITS = 8;
+    private static final int BYTE_MASK = 0xff;
+    private static final int MEMORY_SIZE = 0x10000;
+    private static final int CPU_STEPS = 65536;
+    private static final char[] CPU_PROGRAM = {
+        0xa2, 0x00,             // 0000: LDX #$00
+        0x18,                   // 0002: CLC
+        0xbd, 0x00, 0x10,       // 0003: LDA $1000,X
+        0x69, 0x01,             // 0006: ADC #$01
+        0x9d, 0x00, 0x20,       // 0008: STA $2000,X
+        0xe8,                   // 000b: INX
+        0xd0, 0xf4,             // 000c: BNE $0002
+        0x4c, 0x00, 0x00,       // 000e: JMP $0000
+    };
+
+    private static volatile long sink = 0;
+
+    /**
+     * class Case
+     *
+     * One benchmark case. run() is called repeatedly until an iteration
+     * time passes.
+     */
+    private abstract static class Case {
+        private final String name;
+        private final String unit;
+
+        /**
+         * Class constructor.
+         * @param caseName case name to report
+         * @param opUnit unit of operations to report
+         */
+        Case(final String caseName, final String opUnit) {
+            name = caseName;
+            unit = opUnit;
+        }
+
+        /**
+         * Run one invocation.
+         * @return the number of operations done
+         */
+        abstract long run();
+    }
+
+    /**
+     * class CpuMemory
+     *
+     * Flat 64KB memory with a small loop program at address 0.
+     */
+    private static final class CpuMemory implements Memory {
+        private final char[] memory = new char[MEMORY_SIZE];
+
+        /**
+         * Class constructor.
+         */
+        CpuMemory() {
+            for (int i = 0; i < CPU_PROGRAM.length; i++) {
+                memory[i] = CPU_PROGRAM[i];
+            }
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to write
+         * @param data data to write
+         */
+        public void writeChar(final int address, final char data) {
+            memory[address] = data;
+        }
+
+        /**
+         * @see Memory
+         * @param address memory address to read
+         * @return read data
+         */
+        public char readChar(final int address) {
+            return memory[address];
+        }
+    }
+
+    /**
+     * Consume a buffer so that the JIT can not remove the work.
+     * @param buffer buffer to consume
+     */
+    private static void consume(final short[] buffer) {
+        sink += buffer[0] + buffer[buffer.length - 1];
+    }
+
+    /**
+     * Create a PSG playing three tones and noise as an AY-3-8910.
+     * @return configured device channel
+     */
+    private static PsgDeviceChannel createAy() {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setDevice(PsgDeviceChannel.DEVICE_AY_3_8910);
+        psg.setClock(PsgDeviceChannel.CLOCK_4MHZ);
+        psg.setBufferLength(BUFFER_LENGTH);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW,
+                AY_TP_A & BYTE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH,
+                AY_TP_A >> BYTE_BITS);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_B_TP_LOW,
+                AY_TP_B & BYTE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_B_TP_HIGH,
+                AY_TP_B >> BYTE_BITS);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_C_TP_LOW,
+                AY_TP_C & BYTE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_C_TP_HIGH,
+                AY_TP_C >> BYTE_BITS);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_NOISE_TP,
+                AY_NOISE_TP);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                AY_MIXER_TONE_ABC_NOISE_C);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME,
+                AY_VOLUME);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_B_VOLUME,
+                AY_VOLUME);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_C_VOLUME,
+                AY_VOLUME);
+        return psg;
+    }
+
+    /**
+     * Create a PSG playing three very high tones without noise as an
+     * AY-3-8910, where tone edges happen at almost every sample.
+     * @return configured device channel
+     */
+    private static PsgDeviceChannel createAyDense() {
+        PsgDeviceChannel psg = createAy();
+        for (int ch = 0; ch < AY_DENSE_TP.length; ch++) {
+            psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW
+                    + ch * AY_TP_REGISTERS, AY_DENSE_TP[ch] & BYTE_MASK);
+            psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH
+                    + ch * AY_TP_REGISTERS, AY_DENSE_TP[ch] >> BYTE_BITS);
+        }
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER,
+                AY_MIXER_TONE_ABC);
+        return psg;
+    }
+
+    /**
+     * Create a PSG playing three tones and white noise as an SN76489.
+     * @return configured device channel
+     */
+    private static PsgDeviceChannel createSn() {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
+        psg.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+        psg.setClock(PsgDeviceChannel.CLOCK_3_58MHZ);
+        psg.setBufferLength(BUFFER_LENGTH);
+        writeSn(psg);
+        return psg;
+    }
+
+    /**
+     * Create an SN76489 channel playing the same as createSn(), with
+     * band-limited synthesis at the half sample rate.
+     * @return channel to benchmark
+     */
+    private static PsgDeviceChannel createSnBandLimited() {
+        PsgDeviceChannel psg = createSn();
+        psg.setSampleRate(MasterChannel.SAMPLE_FREQUENCY / 2);
+        psg.setBandLimited(true);
+        return psg;
+    }
+
+    /**
+     * Write SN76489 registers to play three tones and white noise.
+     * @param psg device to write
+     */
+    private static void writeSn(final Device psg) {
+        for (int ch = 0; ch < SN_TP.length; ch++) {
+            psg.writeRegister(0, SN_LATCH | (ch << SN_CHANNEL_SHIFT)
+                    | (SN_TP[ch] & SN_LOW_MASK));
+            psg.writeRegister(0, (SN_TP[ch] >> SN_DATA_SHIFT) & SN_HIGH_MASK);
+            psg.writeRegister(0, SN_LATCH | (ch << SN_CHANNEL_SHIFT)
+                    | SN_VOLUME_LATCH);
+        }
+        psg.writeRegister(0, SN_LATCH | (SN_NOISE_CHANNEL << SN_CHANNEL_SHIFT)
+                | SN_NOISE_WHITE);
+        psg.writeRegister(0, SN_LATCH | (SN_NOISE_CHANNEL << SN_CHANNEL_SHIFT)
+                | SN_VOLUME_LATCH);
+    }
+
+    /**
+     * Write unsigned int value in little endian.
+     * @param image byte image to write
+     * @param offset offset to write
+     * @param value value to write
+     */
+    private static void writeUInt(final byte[] image, final int offset,
+            final int value) {
+        for (int i = 0; i < UINT_SIZE; i++) {
+            image[offset + i] = (byte) (value >> (i * BYTE_BITS));
+        }
+    }
+
+    /**
+     * Create a looped VGM 1.50 stream that unmutes all SN76489 voices, and
+     * writes tone registers every frame.
+     * @return VGM file image
+     */
+    private static byte[] createVgm() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(VGM_CMD_WRITE_SN);
+        data.write(SN_LATCH | (SN_NOISE_CHANNEL << SN_CHANNEL_SHIFT)
+                | SN_NOISE_WHITE);
+        for (int ch = 0; ch <= SN_NOISE_CHANNEL; ch++) {
+            data.write(VGM_CMD_WRITE_SN);
+            data.write(SN_LATCH | (ch << SN_CHANNEL_SHIFT) | SN_VOLUME_LATCH);
+        }
+        for (int frame = 0; frame < VGM_FRAMES; frame++) {
+            for (int i = 0; i < VGM_WRITES_PER_FRAME; i++) {
+                int ch = i % SN_TP.length;
+                data.write(VGM_CMD_WRITE_SN);
+                data.write(SN_LATCH | (ch << SN_CHANNEL_SHIFT)
+                        | ((frame + i) & SN_LOW_MASK));
+            }
+            data.write(VGM_CMD_WAIT_735);
+        }
+        data.write(VGM_CMD_EOD);
+        byte[] body = data.toByteArray();
+        byte[] image = new byte[VGM_HEADER_SIZE + body.length];
+        writeUInt(image, 0, VGM_IDENT);
+        writeUInt(image, VGM_EOF_OFFSET, image.length - VGM_EOF_OFFSET);
+        writeUInt(image, VGM_VERSION_OFFSET, VGM_VERSION);
+        writeUInt(image, VGM_SN_CLOCK_OFFSET, PsgDeviceChannel.CLOCK_3_58MHZ);
+        writeUInt(image, VGM_TOTAL_SAMPLES_OFFSET,
+                VGM_FRAMES * VGM_SAMPLES_PER_FRAME);
+        writeUInt(image, VGM_LOOP_OFFSET_OFFSET,
+                VGM_HEADER_SIZE - VGM_LOOP_OFFSET_OFFSET);
+        writeUInt(image, VGM_LOOP_SAMPLES_OFFSET,
+                VGM_FRAMES * VGM_SAMPLES_PER_FRAME);
+        System.arraycopy(body, 0, image, VGM_HEADER_SIZE, body.length);
+        return image;
+    }
+
+    /**
+     * Create a PsgDeviceChannel.generate() case.
+     * @param name case name
+     * @param psg device channel to render
+     * @return benchmark case
+     */
+    private static Case createPsgCase(final String name,
+            final PsgDeviceChannel psg) {
+        return new Case(name, "samples") {
+            long run() {
+                psg.generate(BUFFER_LENGTH);
+                consume(psg.getBuffer());
+                return BUFFER_LENGTH / SHORTS_PER_SAMPLE;
+            }
+        };
+    }
+
+    /**
+     * Create a MasterChannel.generate() case.
+     * @param channels the number of SN76489 channels to mix
+     * @return benchmark case
+     */
+    private static Case createMasterCase(final int channels) {
+        final MasterChannel master = new MasterChannel();
+        master.setBufferLength(BUFFER_LENGTH);
+        for (int i = 0; i < channels; i++) {
+            master.addChannel(createSn());
+        }
+        return new Case("master.generate." + channels, "samples") {
+            long run() {
+                master.generate(BUFFER_LENGTH);
+                consume(master.getBuffer());
+                return BUFFER_LENGTH / SHORTS_PER_SAMPLE;
+            }
+        };
+    }
+
+    /**
+     * Create a PsgGroupChannel.generate() case, comparable to the
+     * MasterChannel.generate() case of the same number of chips.
+     * @return benchmark case
+     */
+    private static Case createGroupCase() {
+        final PsgGroupChannel group = new PsgGroupChannel(GROUP_CHIPS);
+        group.setMode(PsgDeviceChannel.MODE_SIGNED);
+        group.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+        group.setClock(PsgDeviceChannel.CLOCK_3_58MHZ);
+        group.setBufferLength(BUFFER_LENGTH);
+        for (int i = 0; i < GROUP_CHIPS; i++) {
+            writeSn(group.getDevice(i));
+        }
+        return new Case("group.generate." + GROUP_CHIPS, "samples") {
+            long run() {
+                group.generate(BUFFER_LENGTH);
+                consume(group.getBuffer());
+                return BUFFER_LENGTH / SHORTS_PER_SAMPLE;
+            }
+        };
+    }
+
+    /**
+     * Create a MasterChannel.generate() case driven by a VgmPlayer, which
+     * measures decoding and rendering split at every write.
+     * @return benchmark case
+     */
+    private static Case createVgmCase() {
+        final MasterChannel master = new MasterChannel();
+        master.setBufferLength(BUFFER_LENGTH);
+        final VgmPlayer player = new VgmPlayer();
+        player.setMasterChannel(master);
+        player.play(new ByteArrayInputStream(createVgm()));
+        return new Case("vgm.render", "samples") {
+            long run() {
+                master.generate(BUFFER_LENGTH);
+                consume(master.getBuffer());
+                sink += player.getLoopCount();
+                return BUFFER_LENGTH / SHORTS_PER_SAMPLE;
+            }
+        };
+    }
+
+    /**
+     * Create a VgmPlayer.seek() case which seeks forward over loops by
+     * a stride not aligned to frames.
+     * @return benchmark case
+     */
+    private static Case createSeekCase() {
+        final VgmPlayer player = new VgmPlayer();
+        player.setMasterChannel(new MasterChannel());
+        player.play(new ByteArrayInputStream(createVgm()));
+        return new Case("vgm.seek", "seeks") {
+            private long position = 0;
+            long run() {
+                for (int i = 0; i < VGM_SEEKS; i++) {
+                    position += VGM_SEEK_STRIDE;
+                    player.seek(position);
+                }
+                sink += player.getLoopCount();
+                return VGM_SEEKS;
+            }
+        };
+    }
+
+    /**
+     * Create a PsgDeviceChannel.writeRegister() case which writes volume
+     * registers as sample playback through a PSG does.
+     * @param name case name
+     * @param psg device channel to write
+     * @param sn true if the channel emulates SN76489
+     * @return benchmark case
+     */
+    private static Case createWriteCase(final String name,
+            final PsgDeviceChannel psg, final boolean sn) {
+        return new Case(name, "writes") {
+            long run() {
+                for (int i = 0; i < REGISTER_WRITES; i++) {
+                    int ch = i % AY_CHANNELS;
+                    int volume = (i >> 2) & SN_LOW_MASK;
+                    if (sn) {
+                        psg.writeRegister(0, SN_LATCH
+                                | (ch << SN_CHANNEL_SHIFT) | SN_VOLUME_LATCH
+                                | volume);
+                    } else {
+                        psg.writeRegister(PsgDeviceChannel
+                                .REGISTER_AY_CH_A_VOLUME + ch, volume);
+                    }
+                }
+                psg.generate(SHORTS_PER_SAMPLE);
+                consume(psg.getBuffer());
+                return REGISTER_WRITES;
+            }
+        };
+    }
+
+    /**
+     * Create a Cpu6502.runStep() case.
+     * @return benchmark case
+     */
+    private static Case createCpuCase() {
+        final Cpu6502 cpu = new Cpu6502();
+        cpu.setMemory(new CpuMemory());
+        return new Case("cpu6502.runStep", "instructions") {
+            long run() {
+                for (int i = 0; i < CPU_STEPS; i++) {
+                    cpu.runStep();
+                }
+                sink += cpu.readRegister(Cpu6502.REG_A);
+                return CPU_STEPS;
+            }
+        };
+    }
+
+    /**
+     * Run one iteration.
+     * @param target case to run
+     * @param msec iteration time in milli seconds
+     * @return measured operations per second
+     */
+    private static double iterate(final Case target, final int msec) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long end = start + msec * NSEC_PER_MSEC;
+        long now;
+        do {
+            operations += target.run();
+            now = System.nanoTime();
+        } while (now < end);
+        return operations * NSEC_PER_SEC / (now - start);
+    }
+
+    /**
+     * Measure and report a case.
+     * @param target case to measure
+     * @param msec iteration time in milli seconds
+     * @param report log to report the result
+     */
+    private static void measure(final Case target, final int msec,
+            final Log report) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(target, msec);
+        }
+        double total = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            double score = iterate(target, msec);
+            total += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+        }
+        report.info(String.format("%-20s %12.0f %s/sec (min %.0f, max %.0f)",
+                target.name, total / MEASURE_ITERATIONS, target.unit,
+                min, max));
+    }
+
+    /**
+     * Main to run benchmarks.
+     * @param args optional case name prefix and iteration time in msec
+     */
+    public static void main(final String[] args) {
+        Log report = new J2SELog();
+        Log.setLog(report);
+        Log.setThreadLog(new Log() { });
+        String prefix = "";
+        int msec = DEFAULT_ITERATION_MSEC;
+        if (args.length > 0) {
+            prefix = args[0];
+        }
+        if (args.length > 1) {
+            msec = Integer.parseInt(args[1]);
+        }
+        List<Case> cases = new ArrayList<Case>();
+        cases.add(createPsgCase("psg.generate.ay", createAy()));
+        cases.add(createPsgCase("psg.generate.ay.dense",
+                createAyDense()));
+        PsgDeviceChannel vector = createAyDense();
+        if (vector.setVectorKernel(true)) {
+            cases.add(createPsgCase("psg.generate.ay.dense.vector",
+                    vector));
+        }
+        cases.add(createPsgCase("psg.generate.sn", createSn()));
+        cases.add(createPsgCase("psg.generate.sn.blep",
+                createSnBandLimited()));
+        cases.add(createWriteCase("psg.writeRegister.ay",
+                createAy(), false));
+        cases.add(createWriteCase("psg.writeRegister.sn",
+                createSn(), true));
+        for (int i = 0; i < MASTER_CHANNELS.length; i++) {
+            cases.add(createMasterCase(MASTER_CHANNELS[i]));
+        }
+        cases.add(createGroupCase());
+        cases.add(createVgmCase());
+        cases.add(createSeekCase());
+        cases.add(createCpuCase());
+        for (int i = 0; i < cases.size(); i++) {
+            if (cases.get(i).name.startsWith(prefix)) {
+                measure(cases.get(i), msec, report);
+            }
+        }
+        Log.setThreadLog(null);
+        report.info("sink: " + sink);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.twintail.Log;
+import org.twintail.tss.PsgDeviceChannel;
+
+/**
+ * class EnvelopeTest
+ *
+ * This class checks the envelope generator of PsgDeviceChannel. Channel A
+ * plays a repeated rising ramp with a tone toggling about every sample,
+ * so that non-zero samples are envelope levels. The test checks that a
+ * ramp is as long as 16 tone periods, i.e., 32 tone half periods, of the
+ * same period value on both AY-3-8910 and YM-2149, as a tone period is
+ * 16 * TP chip clocks and a ramp is 256 * EP chip clocks. It also checks
+ * that a ramp walks 16 levels on AY-3-8910 and 32 levels on YM-2149.
+ * Usage: EnvelopeTest
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class EnvelopeTest {
+    private static final int RATE = 44100;
+    private static final int[] PERIODS = { 20, 100, 1000 };
+    private static final int HALF_PERIODS_PER_RAMP = 32;
+    private static final int VOLUME_MAX = 0x0f;
+    private static final int BLOCK_LENGTH = 8192;
+    private static final int BLOCKS = 20;
+    private static final double TOLERANCE = 0.01;
+    private static final int MIXER_TONE_A = 0x3e;
+    private static final int TP_FAST = 5;
+    private static final int VOLUME_ENVELOPE = 0x10;
+    private static final int SHAPE_SAW_UP = 0x0c;
+    private static final int BYTE_BITS = 8;
+    private static final int BYTE_MASK = 0xff;
+    private static final int AY_LEVELS = 16;
+    // 32 levels of YM-2149 have 28 distinct volumes.
+    private static final int YM_LEVELS = 28;
+    private static final int LEVEL_PERIOD = 1000;
+
+    /**
+     * Create a device playing a rising ramp envelope on channel A.
+     * @param device target device
+     * @param period envelope period
+     * @return device channel
+     */
+    private static PsgDeviceChannel createPsg(final int device,
+            final int period) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setSampleRate(RATE);
+        psg.setClock(PsgDeviceChannel.CLOCK_3_58MHZ);
+        psg.setMode(PsgDeviceChannel.MODE_UNSIGNED);
+        psg.setDevice(device);
+        psg.setBufferLength(BLOCK_LENGTH);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW, TP_FAST);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_MIXER, MIXER_TONE_A);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_LOW,
+                period & BYTE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_HIGH,
+                period >> BYTE_BITS);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME,
+                VOLUME_ENVELOPE);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_EP_CONTROL,
+                SHAPE_SAW_UP);
+        return psg;
+    }
+
+    /**
+     * Count tone half periods of channel A in BLOCKS blocks.
+     * @param device target device
+     * @param period tone period
+     * @return tone half periods
+     */
+    private static int countHalfPeriods(final int device, final int period) {
+        PsgDeviceChannel psg = createPsg(device, period);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_LOW,
+                period & BYTE_MASK);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_TP_HIGH,
+                period >> BYTE_BITS);
+        psg.writeRegister(PsgDeviceChannel.REGISTER_AY_CH_A_VOLUME,
+                VOLUME_MAX);
+        int edges = 0;
+        int last = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            psg.generate(BLOCK_LENGTH);
+            short[] buffer = psg.getBuffer();
+            for (int j = 0; j < BLOCK_LENGTH / 2; j++) {
+                if (buffer[j] != last) {
+                    edges++;
+                }
+                last = buffer[j];
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Check the ramp length of an envelope period.
+     * @param device target device
+     * @param period envelope period
+     * @return true if the ramp length is expected one
+     */
+    private static boolean checkPeriod(final int device, final int period) {
+        PsgDeviceChannel psg = createPsg(device, period);
+        int ramps = 0;
+        int last = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            psg.generate(BLOCK_LENGTH);
+            short[] buffer = psg.getBuffer();
+            for (int j = 0; j < BLOCK_LENGTH / 2; j++) {
+                if (0 == buffer[j]) {
+                    continue;
+                }
+                if (buffer[j] < last) {
+                    ramps++;
+                }
+                last = buffer[j];
+            }
+        }
+        double expected = (double) countHalfPeriods(device, period)
+                / HALF_PERIODS_PER_RAMP;
+        // A ramp may be cut at each end.
+        if (Math.abs(ramps - expected) > expected * TOLERANCE + 1) {
+            Log.getLog().error("device " + device + ", EP " + period + ": "
+                    + ramps + " ramps for " + expected);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the number of levels in a ramp. Levels include 0, which is
+     * also the output of low tone samples.
+     * @param device target device
+     * @param levels expected number of distinct levels
+     * @return true if the ramp has expected levels
+     */
+    private static boolean checkLevels(final int device, final int levels) {
+        PsgDeviceChannel psg = createPsg(device, LEVEL_PERIOD);
+        Set<Short> found = new HashSet<Short>();
+        for (int i = 0; i < BLOCKS; i++) {
+            psg.generate(BLOCK_LENGTH);
+            short[] buffer = psg.getBuffer();
+            for (int j = 0; j < BLOCK_LENGTH / 2; j++) {
+                found.add(buffer[j]);
+            }
+        }
+        if (found.size() != levels) {
+            Log.getLog().error("device " + device + ": " + found.size()
+                    + " levels for " + levels);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Main to run the test.
+     * @param args arguments (not used)
+     */
+    public static void main(final String[] args) {
+        Log.setLog(new J2SELog());
+        boolean passed = checkLevels(PsgDeviceChannel.DEVICE_AY_3_8910,
+                AY_LEVELS);
+        passed &= checkLevels(PsgDeviceChannel.DEVICE_YM_2149, YM_LEVELS);
+        for (int i = 0; i < PERIODS.length; i++) {
+            passed &= checkPeriod(PsgDeviceChannel.DEVICE_AY_3_8910,
+                    PERIODS[i]);
+            passed &= checkPeriod(PsgDeviceChannel.DEVICE_YM_2149,
+                    PERIODS[i]);
+        }
+        if (!passed) {
+            Log.getLog().error("FAILED");
+            System.exit(1);
+        }
+        Log.getLog().info("PASSED");
+    }
+}
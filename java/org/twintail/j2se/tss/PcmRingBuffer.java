@@ -0,0 +1,103 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+/**
+ * class PcmRingBuffer
+ *
+ * This class provides a lock-free single-producer single-consumer ring
+ * buffer of fixed size PCM blocks. All memory is allocated at
+ * construction. One thread may acquire and commit blocks to write, and
+ * another thread may acquire and commit blocks to read, concurrently.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class PcmRingBuffer {
+    private final byte[] buffer;
+    private final int blockSize;
+    private final int blocks;
+    private volatile long writeCount = 0;
+    private volatile long readCount = 0;
+
+    /**
+     * Class constructor.
+     * @param blockSizeInBytes size of one block in bytes
+     * @param numOfBlocks the number of blocks in the ring
+     */
+    public PcmRingBuffer(final int blockSizeInBytes, final int numOfBlocks) {
+        blockSize = blockSizeInBytes;
+        blocks = numOfBlocks;
+        buffer = new byte[blockSize * blocks];
+    }
+
+    /**
+     * Get backing buffer. Offsets returned by acquireWrite() and
+     * acquireRead() point into this buffer.
+     * @return backing buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get block size.
+     * @return size of one block in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get capacity.
+     * @return the number of blocks in the ring
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Get the number of blocks ready to read.
+     * @return the number of filled blocks
+     */
+    public int available() {
+        return (int) (writeCount - readCount);
+    }
+
+    /**
+     * Acquire a block to write. Producer thread only.
+     * @return byte offset of the block, or -1 if the ring is full
+     */
+    public int acquireWrite() {
+        long count = writeCount;
+        if (count - readCount >= blocks) {
+            return -1;
+        }
+        return (int) (count % blocks) * blockSize;
+    }
+
+    /**
+     * Publish the block acquired by acquireWrite(). Producer thread only.
+     */
+    public void commitWrite() {
+        writeCount = writeCount + 1;
+    }
+
+    /**
+     * Acquire a block to read. Consumer thread only.
+     * @return byte offset of the block, or -1 if the ring is empty
+     */
+    public int acquireRead() {
+        long count = readCount;
+        if (count == writeCount) {
+            return -1;
+        }
+        return (int) (count % blocks) * blockSize;
+    }
+
+    /**
+     * Release the block acquired by acquireRead(). Consumer thread only.
+     */
+    public void commitRead() {
+        readCount = readCount + 1;
+    }
+}
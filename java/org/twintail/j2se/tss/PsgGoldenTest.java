@@ -0,0 +1,538 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.twintail.Log;
+import org.twintail.tss.MasterChannel;
+import org.twintail.tss.PsgDeviceChannel;
+
+/**
+ * class PsgGoldenTest
+ *
+ * This class guards PsgDeviceChannel output against golden vectors.
+ * Each scenario plays a fixed random register stream on a device, mode
+ * and sample rate, and the CRC32 of the output is compared with the value
+ * recorded from the span renderer, which matched the original per-sample
+ * counter stepping sample by sample, except for envelope ramps fixed
+ * later to walk 16 levels on AY-3-8910, and to last 16 tone periods of
+ * the same period value on both AY-3-8910 and YM-2149.
+ * The same stream is also rendered in short blocks, and through the span
+ * renderer used for voice outputs, and both must match the output of the
+ * whole blocks exactly. A MasterChannel at unit volume must expand the
+ * mono output to both sides of its stereo output.
+ * Another scenario walks all 64 mixer settings of AY-3-8910 and YM-2149,
+ * which select specialized render kernels, and checks them against the
+ * span renderer and golden vectors.
+ * Noise only streams walk noise settings of each device over several
+ * LFSR periods, including SN76489 mode changes that keep the LFSR state.
+ * Register images read back after random writes to every address guard
+ * register decoding. Batch writes by writeRegisters() must leave the
+ * same output and state as writing registers one by one.
+ * Usage: PsgGoldenTest
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class PsgGoldenTest {
+    private static final int[] DEVICES = {
+        PsgDeviceChannel.DEVICE_AY_3_8910, PsgDeviceChannel.DEVICE_YM_2149,
+        PsgDeviceChannel.DEVICE_SN76489,
+    };
+    private static final int[] MODES = {
+        PsgDeviceChannel.MODE_UNSIGNED, PsgDeviceChannel.MODE_SIGNED,
+    };
+    private static final int[] RATES = { 22050, 44100, 96000 };
+    private static final long[] GOLDEN = {
+        // AY-3-8910
+        0x8abd0d64L, 0xb57cc150L, 0xed528aebL,
+        0x5d1e87a6L, 0xb37bd3e4L, 0x8cffae13L,
+        // YM-2149
+        0xfb0cff58L, 0xaaabec60L, 0xceab79f8L,
+        0xbc9b071bL, 0x6ca16592L, 0xb3f3de77L,
+        // SN76489
+        0x07c4dafcL, 0x87d87305L, 0xf4d65851L,
+        0x6a55b5c5L, 0xc52f6a4cL, 0x9618c858L,
+    };
+    private static final long[] MIXER_GOLDEN = {
+        // AY-3-8910 unsigned, signed, and YM-2149 unsigned, signed
+        0xbfac5d06L, 0x3957914eL, 0xabd1845eL, 0xa97cf750L,
+    };
+    private static final long[] NOISE_GOLDEN = {
+        // AY-3-8910, YM-2149, SN76489
+        0xc9f9d34bL, 0xa4116d08L, 0xb12c4f0bL,
+    };
+    private static final int NOISE_RATE = 44100;
+    private static final int NOISE_BLOCKS = 64;
+    private static final int NOISE_LENGTH = 4096;
+    private static final int AY_NOISE_MIXER = 0x07;
+    private static final int AY_MAX_VOLUME = 0x0f;
+    private static final int[] AY_NOISE_TPS = { 0, 1, 2, 7, 16, 31 };
+    private static final int SN_NOISE_CONTROL = 0xe0;
+    private static final int SN_NOISE_MODES = 8;
+    private static final int SN_NOISE_VOLUME_MAX = 0xf0;
+    private static final int SN_TONE_C_LATCH = 0xc0;
+    private static final int[] SN_MUTE = { 0x9f, 0xbf, 0xdf };
+    private static final long[] REGISTER_GOLDEN = {
+        // AY-3-8910, YM-2149, SN76489
+        0x9c700d52L, 0x3d3a24ddL, 0x8111fac2L,
+    };
+    private static final int REGISTER_WRITES = 4096;
+    private static final int REGISTERS = 16;
+    private static final int BATCH_BLOCKS = 256;
+    private static final int MAX_BATCH = 16;
+    private static final int AY_DEVICES = 2;
+    private static final int CHANNELS = 3;
+    private static final int MIXERS = 64;
+    private static final int MIXER_RATE = 44100;
+    private static final int MIXER_LENGTH = 2048;
+    private static final int REGISTER_AY_CH_A_TP_LOW = 0;
+    private static final int REGISTER_AY_NOISE_TP = 6;
+    private static final int REGISTER_AY_MIXER = 7;
+    private static final int REGISTER_AY_CH_A_VOLUME = 8;
+    private static final int REGISTER_AY_EP_LOW = 11;
+    private static final int REGISTER_AY_EP_CONTROL = 13;
+    private static final int NOISE_TP_RANGE = 32;
+    private static final int VOLUME_RANGE = 32;
+    private static final int SHAPE_RANGE = 16;
+    private static final int BLOCKS = 64;
+    private static final int WRITES = 4;
+    private static final int MAX_LENGTH = 4096;
+    private static final int MAX_SPLIT = 64;
+    private static final int AY_REGISTERS = 14;
+    private static final int AY_TP_REGISTERS = 6;
+    private static final int SHORT_TP = 64;
+    private static final int BYTE_RANGE = 256;
+    private static final int BYTE_BITS = 8;
+    private static final int BYTE_MASK = 0xff;
+    private static final int SN_LATCH = 0x80;
+    private static final int SN_REGISTER_RANGE = 0x70;
+    private static final int SN_LOW_RANGE = 0x10;
+    private static final int SN_HIGH_RANGE = 0x40;
+    private static final int SN_SHORT_HIGH = 0x02;
+
+    /**
+     * Create a device for the test.
+     * @param device target device
+     * @param mode wave form mode
+     * @param rate sample rate in Hz
+     * @return device channel
+     */
+    private static PsgDeviceChannel createPsg(final int device,
+            final int mode, final int rate) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setSampleRate(rate);
+        psg.setClock(PsgDeviceChannel.CLOCK_3_58MHZ);
+        psg.setMode(mode);
+        psg.setDevice(device);
+        psg.setBufferLength(MAX_LENGTH);
+        return psg;
+    }
+
+    /**
+     * Create a random register write. Tone periods are short mostly, so
+     * that blocks have many edges.
+     * @param random random source
+     * @param device target device
+     * @return register address in upper bits, and value in lower 8 bits
+     */
+    private static int createWrite(final Random random, final int device) {
+        if (device == PsgDeviceChannel.DEVICE_SN76489) {
+            int value;
+            if (random.nextBoolean()) {
+                value = SN_LATCH | random.nextInt(SN_REGISTER_RANGE)
+                        | random.nextInt(SN_LOW_RANGE);
+            } else if (random.nextBoolean()) {
+                value = random.nextInt(SN_SHORT_HIGH);
+            } else {
+                value = random.nextInt(SN_HIGH_RANGE);
+            }
+            return value;
+        }
+        int address = random.nextInt(AY_REGISTERS);
+        int value = random.nextInt(BYTE_RANGE);
+        if (address < AY_TP_REGISTERS) {
+            if (0 == (address & 1)) {
+                value = random.nextInt(SHORT_TP);
+            } else if (random.nextBoolean()) {
+                value = 0;
+            }
+        }
+        return (address << BYTE_BITS) | value;
+    }
+
+    /**
+     * Add generated samples to a CRC.
+     * @param crc CRC to update
+     * @param buffer generated samples
+     * @param samples the number of samples
+     */
+    private static void update(final CRC32 crc, final short[] buffer,
+            final int samples) {
+        for (int i = 0; i < samples; i++) {
+            crc.update(buffer[i] & BYTE_MASK);
+            crc.update((buffer[i] >> BYTE_BITS) & BYTE_MASK);
+        }
+    }
+
+    /**
+     * Run one scenario.
+     * @param index scenario index, also used as the random seed
+     * @param device target device
+     * @param mode wave form mode
+     * @param rate sample rate in Hz
+     * @return CRC32 of the output, or -1 on mismatch among render paths
+     */
+    private static long run(final int index, final int device,
+            final int mode, final int rate) {
+        Random random = new Random(index);
+        PsgDeviceChannel whole = createPsg(device, mode, rate);
+        PsgDeviceChannel split = createPsg(device, mode, rate);
+        PsgDeviceChannel spans = createPsg(device, mode, rate);
+        spans.setVoiceOutput(true);
+        PsgDeviceChannel mono = createPsg(device, mode, rate);
+        MasterChannel master = new MasterChannel();
+        master.setSampleRate(rate);
+        master.setBufferLength(MAX_LENGTH);
+        master.setVolume(1);
+        master.addChannel(mono);
+        CRC32 crc = new CRC32();
+        short[] expected = new short[MAX_LENGTH >> 1];
+        for (int block = 0; block < BLOCKS; block++) {
+            for (int i = 0; i < WRITES; i++) {
+                int write = createWrite(random, device);
+                int address = write >> BYTE_BITS;
+                int value = write & BYTE_MASK;
+                whole.writeRegister(address, value);
+                split.writeRegister(address, value);
+                spans.writeRegister(address, value);
+                mono.writeRegister(address, value);
+            }
+            int length = random.nextInt(MAX_LENGTH + 1);
+            int samples = (length + 1) >> 1;
+            whole.generate(length);
+            System.arraycopy(whole.getBuffer(), 0, expected, 0, samples);
+            update(crc, expected, samples);
+            spans.generate(length);
+            if (!compare("spans", block, expected, 0, spans.getBuffer(),
+                    samples)) {
+                return -1;
+            }
+            master.generate(length);
+            if (!compareStereo(block, expected, master.getBuffer(), length)) {
+                return -1;
+            }
+            // Split at sample boundaries, so that sample counts add up.
+            int offset = 0;
+            while (offset < samples) {
+                int count = Math.min(samples - offset,
+                        1 + random.nextInt(MAX_SPLIT));
+                int splitLength = count << 1;
+                if (offset + count == samples) {
+                    splitLength = length - (offset << 1);
+                }
+                split.generate(splitLength);
+                if (!compare("split", block, expected, offset,
+                        split.getBuffer(), count)) {
+                    return -1;
+                }
+                offset += count;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Run all mixer settings on a device.
+     * @param index scenario index, also used as the random seed
+     * @param device target device
+     * @param mode wave form mode
+     * @return CRC32 of the output, or -1 on mismatch among render paths
+     */
+    private static long runMixers(final int index, final int device,
+            final int mode) {
+        Random random = new Random(index);
+        PsgDeviceChannel kernels = createPsg(device, mode, MIXER_RATE);
+        PsgDeviceChannel spans = createPsg(device, mode, MIXER_RATE);
+        spans.setVoiceOutput(true);
+        CRC32 crc = new CRC32();
+        int[] addresses = new int[REGISTER_AY_EP_CONTROL + 1];
+        int[] values = new int[REGISTER_AY_EP_CONTROL + 1];
+        for (int mixer = 0; mixer < MIXERS; mixer++) {
+            int count = 0;
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                addresses[count] = REGISTER_AY_CH_A_TP_LOW + (channel << 1);
+                values[count++] = random.nextInt(SHORT_TP);
+                addresses[count] = REGISTER_AY_CH_A_VOLUME + channel;
+                values[count++] = random.nextInt(VOLUME_RANGE);
+            }
+            addresses[count] = REGISTER_AY_NOISE_TP;
+            values[count++] = random.nextInt(NOISE_TP_RANGE);
+            addresses[count] = REGISTER_AY_EP_LOW;
+            values[count++] = random.nextInt(BYTE_RANGE);
+            addresses[count] = REGISTER_AY_EP_CONTROL;
+            values[count++] = random.nextInt(SHAPE_RANGE);
+            addresses[count] = REGISTER_AY_MIXER;
+            values[count++] = mixer;
+            for (int i = 0; i < count; i++) {
+                kernels.writeRegister(addresses[i], values[i]);
+                spans.writeRegister(addresses[i], values[i]);
+            }
+            kernels.generate(MIXER_LENGTH);
+            spans.generate(MIXER_LENGTH);
+            update(crc, kernels.getBuffer(), MIXER_LENGTH >> 1);
+            if (!compare("mixer", mixer, kernels.getBuffer(), 0,
+                    spans.getBuffer(), MIXER_LENGTH >> 1)) {
+                return -1;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Run noise only streams on a device.
+     * @param index scenario index, also used as the random seed
+     * @param device target device
+     * @return CRC32 of the output, or -1 on mismatch among render paths
+     */
+    private static long runNoise(final int index, final int device) {
+        Random random = new Random(index);
+        PsgDeviceChannel tables = createPsg(device,
+                PsgDeviceChannel.MODE_SIGNED, NOISE_RATE);
+        PsgDeviceChannel spans = createPsg(device,
+                PsgDeviceChannel.MODE_SIGNED, NOISE_RATE);
+        spans.setVoiceOutput(true);
+        PsgDeviceChannel[] psgs = { tables, spans };
+        for (int i = 0; i < psgs.length; i++) {
+            PsgDeviceChannel psg = psgs[i];
+            if (device == PsgDeviceChannel.DEVICE_SN76489) {
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    psg.writeRegister(0, SN_MUTE[channel]);
+                }
+                psg.writeRegister(0, SN_NOISE_VOLUME_MAX);
+            } else {
+                psg.writeRegister(REGISTER_AY_MIXER, AY_NOISE_MIXER);
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    psg.writeRegister(REGISTER_AY_CH_A_VOLUME + channel,
+                            AY_MAX_VOLUME);
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        for (int block = 0; block < NOISE_BLOCKS; block++) {
+            for (int i = 0; i < psgs.length; i++) {
+                PsgDeviceChannel psg = psgs[i];
+                if (device == PsgDeviceChannel.DEVICE_SN76489) {
+                    // Tone C clocks the noise in mode 3.
+                    psg.writeRegister(0, SN_TONE_C_LATCH
+                            | (block % SN_LOW_RANGE));
+                    psg.writeRegister(0, block / SN_LOW_RANGE);
+                    psg.writeRegister(0, SN_NOISE_CONTROL
+                            | (block % SN_NOISE_MODES));
+                } else {
+                    psg.writeRegister(REGISTER_AY_NOISE_TP,
+                            AY_NOISE_TPS[block % AY_NOISE_TPS.length]);
+                }
+            }
+            int length = NOISE_LENGTH - (random.nextInt(NOISE_LENGTH) & ~1);
+            tables.generate(length);
+            spans.generate(length);
+            update(crc, tables.getBuffer(), length >> 1);
+            if (!compare("noise", block, tables.getBuffer(), 0,
+                    spans.getBuffer(), length >> 1)) {
+                return -1;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Write random values to every register address, and read back all
+     * registers after each write.
+     * @param index scenario index, also used as the random seed
+     * @param device target device
+     * @return CRC32 of read values
+     */
+    private static long runRegisters(final int index, final int device) {
+        Random random = new Random(index);
+        PsgDeviceChannel psg = createPsg(device,
+                PsgDeviceChannel.MODE_UNSIGNED, MIXER_RATE);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < REGISTER_WRITES; i++) {
+            int address = 0;
+            if (device != PsgDeviceChannel.DEVICE_SN76489) {
+                address = random.nextInt(REGISTERS);
+            }
+            psg.writeRegister(address, random.nextInt(BYTE_RANGE));
+            for (int r = 0; r < REGISTERS; r++) {
+                int value = psg.readRegister(r);
+                crc.update(value & BYTE_MASK);
+                crc.update((value >> BYTE_BITS) & BYTE_MASK);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Write random batches by writeRegisters() and one by one, and compare
+     * outputs and states. Batch arrays are longer than the count, and
+     * entries after the count must be ignored.
+     * @param index scenario index, also used as the random seed
+     * @param device target device
+     * @return true if both devices match
+     */
+    private static boolean runBatch(final int index, final int device) {
+        Random random = new Random(index);
+        PsgDeviceChannel batch = createPsg(device,
+                PsgDeviceChannel.MODE_SIGNED, MIXER_RATE);
+        PsgDeviceChannel single = createPsg(device,
+                PsgDeviceChannel.MODE_SIGNED, MIXER_RATE);
+        int[] addresses = new int[MAX_BATCH];
+        int[] values = new int[MAX_BATCH];
+        int[] batchState = new int[PsgDeviceChannel.STATE_SIZE];
+        int[] singleState = new int[PsgDeviceChannel.STATE_SIZE];
+        for (int block = 0; block < BATCH_BLOCKS; block++) {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                int write = createWrite(random, device);
+                addresses[i] = write >> BYTE_BITS;
+                values[i] = write & BYTE_MASK;
+            }
+            int count = random.nextInt(MAX_BATCH + 1);
+            batch.writeRegisters(addresses, values, count);
+            for (int i = 0; i < count; i++) {
+                single.writeRegister(addresses[i], values[i]);
+            }
+            int length = random.nextInt(MAX_LENGTH + 1);
+            batch.generate(length);
+            single.generate(length);
+            if (!compare("batch", block, single.getBuffer(), 0,
+                    batch.getBuffer(), (length + 1) >> 1)) {
+                return false;
+            }
+            batch.saveState(batchState, 0);
+            single.saveState(singleState, 0);
+            for (int i = 0; i < PsgDeviceChannel.STATE_SIZE; i++) {
+                if (batchState[i] != singleState[i]) {
+                    Log.getLog().error("batch: state mismatch at block "
+                            + block + ", index " + i + ": " + batchState[i]
+                            + " for " + singleState[i]);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare samples of another render path with the expected ones.
+     * @param name render path name
+     * @param block block index
+     * @param expected expected samples
+     * @param offset offset in expected samples
+     * @param actual samples to check
+     * @param samples the number of samples to check
+     * @return true if all samples match
+     */
+    private static boolean compare(final String name, final int block,
+            final short[] expected, final int offset, final short[] actual,
+            final int samples) {
+        for (int i = 0; i < samples; i++) {
+            if (expected[offset + i] != actual[i]) {
+                Log.getLog().error(name + ": mismatch at block " + block
+                        + ", sample " + (offset + i) + ": " + actual[i]
+                        + " for " + expected[offset + i]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare both sides of a stereo output with expected mono samples.
+     * @param block block index
+     * @param expected expected samples
+     * @param actual stereo output to check
+     * @param length the number of shorts to check
+     * @return true if all shorts match
+     */
+    private static boolean compareStereo(final int block,
+            final short[] expected, final short[] actual, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (expected[i >> 1] != actual[i]) {
+                Log.getLog().error("stereo: mismatch at block " + block
+                        + ", short " + i + ": " + actual[i] + " for "
+                        + expected[i >> 1]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Main to run the test.
+     * @param args arguments (not used)
+     */
+    public static void main(final String[] args) {
+        Log.setLog(new J2SELog());
+        boolean passed = true;
+        int index = 0;
+        for (int d = 0; d < DEVICES.length; d++) {
+            for (int m = 0; m < MODES.length; m++) {
+                for (int r = 0; r < RATES.length; r++) {
+                    long crc = run(index, DEVICES[d], MODES[m], RATES[r]);
+                    if ((index >= GOLDEN.length) || (crc != GOLDEN[index])) {
+                        Log.getLog().error("scenario " + index + ": device "
+                                + DEVICES[d] + ", mode " + MODES[m]
+                                + ", rate " + RATES[r] + ": 0x"
+                                + Long.toHexString(crc) + "L");
+                        passed = false;
+                    }
+                    index++;
+                }
+            }
+        }
+        for (int d = 0; d < AY_DEVICES; d++) {
+            for (int m = 0; m < MODES.length; m++) {
+                int mixerIndex = d * MODES.length + m;
+                long crc = runMixers(index, DEVICES[d], MODES[m]);
+                if ((mixerIndex >= MIXER_GOLDEN.length)
+                        || (crc != MIXER_GOLDEN[mixerIndex])) {
+                    Log.getLog().error("mixer scenario " + mixerIndex
+                            + ": device " + DEVICES[d] + ", mode "
+                            + MODES[m] + ": 0x" + Long.toHexString(crc)
+                            + "L");
+                    passed = false;
+                }
+                index++;
+            }
+        }
+        for (int d = 0; d < DEVICES.length; d++) {
+            long crc = runNoise(index, DEVICES[d]);
+            if ((d >= NOISE_GOLDEN.length) || (crc != NOISE_GOLDEN[d])) {
+                Log.getLog().error("noise scenario " + d + ": device "
+                        + DEVICES[d] + ": 0x" + Long.toHexString(crc) + "L");
+                passed = false;
+            }
+            index++;
+        }
+        for (int d = 0; d < DEVICES.length; d++) {
+            long crc = runRegisters(index, DEVICES[d]);
+            if ((d >= REGISTER_GOLDEN.length)
+                    || (crc != REGISTER_GOLDEN[d])) {
+                Log.getLog().error("register scenario " + d + ": device "
+                        + DEVICES[d] + ": 0x" + Long.toHexString(crc) + "L");
+                passed = false;
+            }
+            index++;
+        }
+        for (int d = 0; d < DEVICES.length; d++) {
+            passed &= runBatch(index, DEVICES[d]);
+            index++;
+        }
+        if (!passed) {
+            Log.getLog().error("FAILED");
+            System.exit(1);
+        }
+        Log.getLog().info("PASSED");
+    }
+}
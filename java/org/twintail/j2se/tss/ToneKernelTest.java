@@ -0,0 +1,133 @@
+/**
+ * T'SoundSystem for J2SE (Java Sound API)
+ */
+package org.twintail.j2se.tss;
+
+import java.util.Random;
+import org.twintail.Log;
+import org.twintail.tss.PsgDeviceChannel;
+
+/**
+ * class ToneKernelTest
+ *
+ * This class checks that the vector tone kernel of PsgDeviceChannel
+ * generates exactly the same output as the scalar path. Two devices get
+ * the same random register writes, mostly short tone periods which select
+ * the vector kernel, and every generated block is compared.
+ * Run with --add-modules jdk.incubator.vector, and PsgToneVectorKernel
+ * of the java-vector source root compiled on the class path. Otherwise,
+ * the test is skipped.
+ * Usage: ToneKernelTest [seed] [iterations]
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class ToneKernelTest {
+    private static final long DEFAULT_SEED = 1;
+    private static final int DEFAULT_ITERATIONS = 1000;
+    private static final int BLOCKS = 32;
+    private static final int WRITES = 4;
+    private static final int MAX_LENGTH = 4096;
+    private static final int REGISTERS = 14;
+    private static final int TP_LOW_REGISTERS = 6;
+    private static final int SHORT_TP = 64;
+    private static final int BYTE_RANGE = 256;
+    private static final int[] RATES = { 8000, 22050, 44100, 48000, 96000 };
+    private static final int[] CLOCKS = {
+        PsgDeviceChannel.CLOCK_3_58MHZ, PsgDeviceChannel.CLOCK_4MHZ,
+    };
+
+    /**
+     * Create a device for the test.
+     * @param device target device
+     * @param mode wave form mode
+     * @param rate sample rate in Hz
+     * @param clock device clock in Hz
+     * @param vector true to use the vector kernel
+     * @return device channel
+     */
+    private static PsgDeviceChannel createPsg(final int device,
+            final int mode, final int rate, final int clock,
+            final boolean vector) {
+        PsgDeviceChannel psg = new PsgDeviceChannel();
+        psg.setVectorKernel(vector);
+        psg.setSampleRate(rate);
+        psg.setClock(clock);
+        psg.setMode(mode);
+        psg.setDevice(device);
+        psg.setBufferLength(MAX_LENGTH);
+        return psg;
+    }
+
+    /**
+     * Run one random register stream.
+     * @param random random source
+     * @return true if both devices generate the same output
+     */
+    private static boolean iterate(final Random random) {
+        int device = random.nextBoolean() ? PsgDeviceChannel.DEVICE_AY_3_8910
+                : PsgDeviceChannel.DEVICE_YM_2149;
+        int mode = random.nextBoolean() ? PsgDeviceChannel.MODE_SIGNED
+                : PsgDeviceChannel.MODE_UNSIGNED;
+        int rate = RATES[random.nextInt(RATES.length)];
+        int clock = CLOCKS[random.nextInt(CLOCKS.length)];
+        PsgDeviceChannel scalar = createPsg(device, mode, rate, clock, false);
+        PsgDeviceChannel vector = createPsg(device, mode, rate, clock, true);
+        for (int block = 0; block < BLOCKS; block++) {
+            for (int i = 0; i < WRITES; i++) {
+                int address = random.nextInt(REGISTERS);
+                int value = random.nextInt(BYTE_RANGE);
+                if (address < TP_LOW_REGISTERS) {
+                    // short periods, and high parts of zero mostly
+                    if (0 == (address & 1)) {
+                        value = random.nextInt(SHORT_TP);
+                    } else if (random.nextBoolean()) {
+                        value = 0;
+                    }
+                }
+                scalar.writeRegister(address, value);
+                vector.writeRegister(address, value);
+            }
+            int length = random.nextInt(MAX_LENGTH + 1);
+            scalar.generate(length);
+            vector.generate(length);
+            short[] expected = scalar.getBuffer();
+            short[] actual = vector.getBuffer();
+            for (int i = 0; i < (length + 1) >> 1; i++) {
+                if (expected[i] != actual[i]) {
+                    Log.getLog().error("mismatch at block " + block
+                            + ", sample " + i + ": " + actual[i]
+                            + " for " + expected[i]);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Main to run the test.
+     * @param args optional random seed and the number of iterations
+     */
+    public static void main(final String[] args) {
+        Log.setLog(new J2SELog());
+        long seed = DEFAULT_SEED;
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length > 0) {
+            seed = Long.parseLong(args[0]);
+        }
+        if (args.length > 1) {
+            iterations = Integer.parseInt(args[1]);
+        }
+        if (!new PsgDeviceChannel().setVectorKernel(true)) {
+            Log.getLog().warn("vector tone kernel is not available, skipped");
+            return;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < iterations; i++) {
+            if (!iterate(random)) {
+                Log.getLog().error("FAILED at iteration " + i);
+                System.exit(1);
+            }
+        }
+        Log.getLog().info("PASSED " + iterations + " iterations");
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * class BlepTable
+ *
+ * This class holds a minimum phase band-limited step (minBLEP) as
+ * residuals from the ideal step, i.e., values to add to a naive step so
+ * that it becomes band-limited at the sample rate.
+ * The step is built once from a Blackman windowed sinc. The sinc is
+ * converted to the minimum phase one via the real cepstrum, so that all
+ * corrections follow the edge, and then integrated.
+ * Residuals are stored for PHASES sub-sample positions of the edge, and
+ * for TAPS samples from the sample at the edge, as fixed point values of
+ * BITS fraction bits.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+final class BlepTable {
+    static final int PHASES = 32;
+    static final int TAPS = 16;
+    static final int BITS = 14;
+    private static final int ZERO_CROSSINGS = TAPS / 2;
+    private static final int POINTS = ZERO_CROSSINGS * 2 * PHASES + 1;
+    private static final int FFT_SIZE = 8192;
+    private static final double BLACKMAN_A0 = 0.42;
+    private static final double BLACKMAN_A1 = 0.5;
+    private static final double BLACKMAN_A2 = 0.08;
+    private static final int[] RESIDUAL = createResidual();
+
+    /**
+     * Class constructor. This class can not be instantiated.
+     */
+    private BlepTable() {
+    }
+
+    /**
+     * Get residuals. Element (phase * TAPS + tap) is the residual at the
+     * tap-th sample from the sample at an edge, where the edge is
+     * (phase / PHASES) sample before the sample.
+     * @return residuals in fixed point
+     */
+    static int[] getResidual() {
+        return RESIDUAL;
+    }
+
+    /**
+     * Create residuals of the minBLEP.
+     * @return residuals in fixed point
+     */
+    private static int[] createResidual() {
+        // Windowed sinc whose zero crossings are at every sample.
+        double[] re = new double[FFT_SIZE];
+        double[] im = new double[FFT_SIZE];
+        for (int i = 0; i < POINTS; i++) {
+            double x = Math.PI * (i - (POINTS - 1) / 2) / PHASES;
+            double sinc = 1.0;
+            if (0.0 != x) {
+                sinc = Math.sin(x) / x;
+            }
+            double w = 2.0 * Math.PI * i / (POINTS - 1);
+            re[i] = sinc * (BLACKMAN_A0 - BLACKMAN_A1 * Math.cos(w)
+                    + BLACKMAN_A2 * Math.cos(2.0 * w));
+        }
+
+        // Real cepstrum.
+        fft(re, im, false);
+        for (int i = 0; i < FFT_SIZE; i++) {
+            double magnitude = Math.sqrt(re[i] * re[i] + im[i] * im[i]);
+            re[i] = Math.log(Math.max(magnitude, Double.MIN_NORMAL));
+            im[i] = 0.0;
+        }
+        fft(re, im, true);
+
+        // Fold the cepstrum into the causal part, which is the one of the
+        // minimum phase sequence with the same magnitude.
+        for (int i = 1; i < FFT_SIZE / 2; i++) {
+            re[i] *= 2.0;
+        }
+        for (int i = FFT_SIZE / 2 + 1; i < FFT_SIZE; i++) {
+            re[i] = 0.0;
+        }
+        for (int i = 0; i < FFT_SIZE; i++) {
+            im[i] = 0.0;
+        }
+
+        // Back to the minimum phase sequence via the complex exponential.
+        fft(re, im, false);
+        for (int i = 0; i < FFT_SIZE; i++) {
+            double magnitude = Math.exp(re[i]);
+            double phase = im[i];
+            re[i] = magnitude * Math.cos(phase);
+            im[i] = magnitude * Math.sin(phase);
+        }
+        fft(re, im, true);
+
+        // Integrate into the step, and normalize its final value to 1.
+        double[] step = new double[POINTS];
+        double sum = 0.0;
+        for (int i = 0; i < POINTS; i++) {
+            sum += re[i];
+            step[i] = sum;
+        }
+        int[] residual = new int[PHASES * TAPS];
+        for (int phase = 0; phase < PHASES; phase++) {
+            for (int tap = 0; tap < TAPS; tap++) {
+                double value = step[tap * PHASES + phase] / sum - 1.0;
+                residual[phase * TAPS + tap] =
+                    (int) Math.round(value * (1 << BITS));
+            }
+        }
+        return residual;
+    }
+
+    /**
+     * Transform complex sequence in place by radix-2 FFT.
+     * @param re real parts
+     * @param im imaginary parts
+     * @param inverse true for the inverse transform, which is scaled by
+     *        1 / length
+     */
+    private static void fft(final double[] re, final double[] im,
+            final boolean inverse) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; 0 != (j & bit); bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        double sign = -1.0;
+        if (inverse) {
+            sign = 1.0;
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = sign * 2.0 * Math.PI / length;
+            double wRe = Math.cos(angle);
+            double wIm = Math.sin(angle);
+            int half = length >> 1;
+            for (int i = 0; i < n; i += length) {
+                double uRe = 1.0;
+                double uIm = 0.0;
+                for (int j = 0; j < half; j++) {
+                    int a = i + j;
+                    int b = a + half;
+                    double tRe = re[b] * uRe - im[b] * uIm;
+                    double tIm = re[b] * uIm + im[b] * uRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double next = uRe * wRe - uIm * wIm;
+                    uIm = uRe * wIm + uIm * wRe;
+                    uRe = next;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+}
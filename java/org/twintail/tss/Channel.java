@@ -10,12 +10,32 @@ package org.twintail.tss;
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public interface Channel {
+    int LAYOUT_STEREO = 0;
+    int LAYOUT_MONO = 1;
+
+    /**
+     * Get internal buffer layout.
+     * LAYOUT_STEREO buffers contain interleaved left and right shorts.
+     * LAYOUT_MONO buffers contain one short per sample, i.e., half of the
+     * length passed to setBufferLength() and generate(), and the master
+     * channel expands them to both sides on mixing.
+     * @return LAYOUT_STEREO or LAYOUT_MONO
+     */
+    int getLayout();
+
     /**
      * Set internal buffer length.
      * @param length buffer length or size in shorts
      */
     void setBufferLength(int length);
 
+    /**
+     * Set output sample rate.
+     * Device channels should recompute their frequency dependent constants.
+     * @param rate sample rate in Hz
+     */
+    void setSampleRate(int rate);
+
     /**
      * Get internal buffer.
      * @return audio stream buffer
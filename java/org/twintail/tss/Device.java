@@ -17,6 +17,16 @@ public interface Device {
      */
     void writeRegister(int address, int value);
 
+    /**
+     * Write device registers at once. The result is the same as writing
+     * them by writeRegister() in order, but derived states are updated
+     * once per call.
+     * @param addresses register addresses to write
+     * @param values register values to write
+     * @param count the number of registers to write
+     */
+    void writeRegisters(int[] addresses, int[] values, int count);
+
     /**
      * Read device register.
      * @param address register address to read
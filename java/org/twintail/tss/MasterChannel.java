@@ -3,42 +3,162 @@
  */
 package org.twintail.tss;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.LinkedList;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * class MasterChannel (thread unsafe)
+ * class MasterChannel
  *
  * This class provide main audio generation loop.
+ * Channels can be added or removed from any thread. Changes take effect
+ * at the next block boundary, and the render thread never locks.
+ * Other methods are thread unsafe.
+ * Slave channels can be rendered in parallel on a ForkJoinPool.
+ * See setParallelPool.
+ * Players can be driven periodically, or by timestamped register writes.
+ * See setScheduleMode.
+ * The mixed stream can be written directly into a ShortBuffer, e.g., a view
+ * of an audio line's ByteBuffer. See generate(int, ShortBuffer).
+ * Mono slave channels are expanded to both sides on mixing.
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class MasterChannel implements Channel {
-    public static final int SAMPLE_FREQUENCY = 44100;
+    public static final int SAMPLE_FREQUENCY = 44100; // default rate
+    public static final int SCHEDULE_INTERVAL = 0;
+    public static final int SCHEDULE_TIMESTAMP = 1;
     private static final int MAX_WAVE_VALUE = 32767;
     private static final int MIN_WAVE_VALUE = -32767;
     private static final int MSEC_PER_SEC = 1000;
     private static final int DEFAULT_VOLUME = 8;
-    private final List<Channel> channels = new LinkedList<Channel>();
-    private short[][] buffers = null;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+    private static final int MAX_BATCH_WRITES = 64;
+    private static final int SHORTS_PER_SAMPLE = 2;
+    private static final Slaves NO_SLAVES =
+        new Slaves(new Channel[0], new short[0][], new short[0][]);
+    private volatile Slaves slaves = NO_SLAVES;
     private short[] buffer = null;
-    private int bufferLength = 0;
+    private ShortBuffer output = null;
+    private volatile int bufferLength = 0;
+    private volatile int sampleRate = SAMPLE_FREQUENCY;
     private Player player = null;
+    private int intervalMsec = 0;
     private int intervalLength = 0;
     private int intervalRestLength = 0;
     private int volume = DEFAULT_VOLUME;
+    private ForkJoinPool pool = null;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private int scheduleMode = SCHEDULE_INTERVAL;
+    private long samplePosition = 0;
+    private long[] queueSample = new long[DEFAULT_QUEUE_SIZE];
+    private Device[] queueDevice = new Device[DEFAULT_QUEUE_SIZE];
+    private int[] queueAddress = new int[DEFAULT_QUEUE_SIZE];
+    private int[] queueValue = new int[DEFAULT_QUEUE_SIZE];
+    private int queueHead = 0;
+    private int queueTail = 0;
+    private int[] batchAddress = new int[MAX_BATCH_WRITES];
+    private int[] batchValue = new int[MAX_BATCH_WRITES];
 
     /**
-     * Reconstruct slave buffer references.
+     * class Slaves
+     *
+     * Immutable snapshot of slave channels and their buffer references.
+     * A new snapshot is published on every channel list modification.
      */
-    private void reconstructBuffers() {
-        Iterator<Channel> it = channels.iterator();
-        short[][] newBuffers = new short[channels.size()][];
-        for (int i = 0; it.hasNext(); i++) {
-            Channel channel = it.next();
-            newBuffers[i] = channel.getBuffer();
+    private static final class Slaves extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Channel[] channels;
+        private final short[][] monoBuffers;
+        private final short[][] stereoBuffers;
+        private final RenderTask[] tasks;
+
+        /**
+         * Class constructor.
+         * @param newChannels slave channels
+         * @param newMonoBuffers buffers of mono slave channels
+         * @param newStereoBuffers buffers of stereo slave channels
+         */
+        Slaves(final Channel[] newChannels, final short[][] newMonoBuffers,
+                final short[][] newStereoBuffers) {
+            channels = newChannels;
+            monoBuffers = newMonoBuffers;
+            stereoBuffers = newStereoBuffers;
+            tasks = new RenderTask[newChannels.length];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new RenderTask(newChannels[i]);
+            }
+        }
+
+        /**
+         * Prepare all tasks to render specified length.
+         * @param length buffer length to generate
+         */
+        void prepare(final int length) {
+            reinitialize();
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i].reinitialize();
+                tasks[i].length = length;
+            }
+        }
+
+        /**
+         * @see RecursiveAction
+         */
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * class RenderTask
+     *
+     * Reusable task to render one slave channel.
+     */
+    private static final class RenderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Channel channel;
+        private int length = 0;
+
+        /**
+         * Class constructor.
+         * @param target channel to render
+         */
+        RenderTask(final Channel target) {
+            channel = target;
+        }
+
+        /**
+         * @see RecursiveAction
+         */
+        protected void compute() {
+            channel.generate(length);
         }
-        buffers = newBuffers;
+    }
+
+    /**
+     * Publish a new slave snapshot.
+     * @param channels slave channels to publish
+     */
+    private void publish(final Channel[] channels) {
+        int monoChannels = 0;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].getLayout() == LAYOUT_MONO) {
+                monoChannels++;
+            }
+        }
+        short[][] monoBuffers = new short[monoChannels][];
+        short[][] stereoBuffers = new short[channels.length - monoChannels][];
+        int mono = 0;
+        int stereo = 0;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].getLayout() == LAYOUT_MONO) {
+                monoBuffers[mono++] = channels[i].getBuffer();
+            } else {
+                stereoBuffers[stereo++] = channels[i].getBuffer();
+            }
+        }
+        slaves = new Slaves(channels, monoBuffers, stereoBuffers);
     }
 
     /**
@@ -53,18 +173,43 @@ public final class MasterChannel implements Channel {
         volume = newVolume;
     }
 
+    /**
+     * Set ForkJoinPool to render slave channels in parallel.
+     * Slave channels must not share any state with each other.
+     * ForkJoinPool.commonPool() is a good choice to share workers among
+     * all master channels in the process.
+     * @param newPool pool to use, or null to render serially
+     */
+    public void setParallelPool(final ForkJoinPool newPool) {
+        pool = newPool;
+    }
+
+    /**
+     * Set minimum block length to render slave channels in parallel.
+     * Shorter blocks are rendered serially because scheduling overheads
+     * exceed rendering costs.
+     * @param length minimum buffer length or size in shorts
+     */
+    public void setParallelThreshold(final int length) {
+        parallelThreshold = length;
+    }
+
     /**
      * Add channel to audio play back loop.
      * @param channel channel to add
      * @return result
      */
-    public boolean addChannel(final Channel channel) {
+    public synchronized boolean addChannel(final Channel channel) {
+        channel.setSampleRate(sampleRate);
         if (0 != bufferLength) {
-            buffers = null;
             channel.setBufferLength(bufferLength);
-            reconstructBuffers();
         }
-        return channels.add(channel);
+        Channel[] channels = slaves.channels;
+        Channel[] newChannels = new Channel[channels.length + 1];
+        System.arraycopy(channels, 0, newChannels, 0, channels.length);
+        newChannels[channels.length] = channel;
+        publish(newChannels);
+        return true;
     }
 
     /**
@@ -72,20 +217,26 @@ public final class MasterChannel implements Channel {
      * @param channel channel to remove
      * @return result
      */
-    public boolean removeChannel(final Channel channel) {
-        buffers = null;
-        boolean result = channels.remove(channel);
-        reconstructBuffers();
-        return result;
+    public synchronized boolean removeChannel(final Channel channel) {
+        Channel[] channels = slaves.channels;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].equals(channel)) {
+                Channel[] newChannels = new Channel[channels.length - 1];
+                System.arraycopy(channels, 0, newChannels, 0, i);
+                System.arraycopy(channels, i + 1, newChannels, i,
+                        newChannels.length - i);
+                publish(newChannels);
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Remove all channels from audio play back loop.
      */
-    public void clearChannel() {
-        buffers = null;
-        channels.clear();
-        reconstructBuffers();
+    public synchronized void clearChannel() {
+        slaves = NO_SLAVES;
     }
 
     /**
@@ -102,49 +253,238 @@ public final class MasterChannel implements Channel {
      */
     public void setPlayerInterval(final int msec) {
         // TODO: intervalLength must be doubled value. See, 80551a7b51fa
-        intervalLength = (int) ((long) SAMPLE_FREQUENCY * (long) msec
+        intervalMsec = msec;
+        intervalLength = (int) ((long) sampleRate * (long) msec
                 / (long) MSEC_PER_SEC);
         intervalRestLength = intervalLength;
     }
 
+    /**
+     * Set how the player is driven.
+     * SCHEDULE_INTERVAL calls back the player at every player interval.
+     * SCHEDULE_TIMESTAMP renders straight through from one posted register
+     * write to the next, and calls back the player when it reaches a point
+     * posted by postPlayerUpdate(), or when no more writes are posted.
+     * @param mode SCHEDULE_INTERVAL or SCHEDULE_TIMESTAMP
+     */
+    public void setScheduleMode(final int mode) {
+        scheduleMode = mode;
+    }
+
+    /**
+     * Get the number of samples rendered so far.
+     * Timestamps for postRegisterWrite() and postPlayerUpdate() are
+     * based on this position. A sample contains a pair of shorts.
+     * @return rendered samples
+     */
+    public long getSamplePosition() {
+        return samplePosition;
+    }
+
+    /**
+     * Post a device register write to be applied at the specified sample.
+     * Writes must be posted in timestamp order. Writes for past samples are
+     * applied at the next block boundary. This method must be called from
+     * the render thread, e.g., in Player.updateDevice().
+     * @param sample sample position to apply the write
+     * @param device device to write
+     * @param address register address to write
+     * @param value register value to write
+     */
+    public void postRegisterWrite(final long sample, final Device device,
+            final int address, final int value) {
+        int mask = queueSample.length - 1;
+        if (((queueTail + 1) & mask) == queueHead) {
+            growQueue();
+            mask = queueSample.length - 1;
+        }
+        queueSample[queueTail] = sample;
+        queueDevice[queueTail] = device;
+        queueAddress[queueTail] = address;
+        queueValue[queueTail] = value;
+        queueTail = (queueTail + 1) & mask;
+    }
+
+    /**
+     * Post a player call back at the specified sample.
+     * @see postRegisterWrite
+     * @param sample sample position to call back
+     */
+    public void postPlayerUpdate(final long sample) {
+        postRegisterWrite(sample, null, 0, 0);
+    }
+
+    /**
+     * Discard all posted register writes and player call backs.
+     */
+    public void clearSchedule() {
+        while (queueHead != queueTail) {
+            queueDevice[queueHead] = null;
+            queueHead = (queueHead + 1) & (queueSample.length - 1);
+        }
+    }
+
+    /**
+     * Double the register write queue capacity.
+     */
+    private void growQueue() {
+        int size = queueSample.length;
+        long[] newSample = new long[size * 2];
+        Device[] newDevice = new Device[size * 2];
+        int[] newAddress = new int[size * 2];
+        int[] newValue = new int[size * 2];
+        int count = 0;
+        for (int i = queueHead; i != queueTail; i = (i + 1) & (size - 1)) {
+            newSample[count] = queueSample[i];
+            newDevice[count] = queueDevice[i];
+            newAddress[count] = queueAddress[i];
+            newValue[count] = queueValue[i];
+            count++;
+        }
+        queueSample = newSample;
+        queueDevice = newDevice;
+        queueAddress = newAddress;
+        queueValue = newValue;
+        queueHead = 0;
+        queueTail = count;
+    }
+
+    /**
+     * Apply all posted register writes and player call backs due by now.
+     */
+    private void dispatchSchedule() {
+        if ((queueHead == queueTail) && (null != player)) {
+            player.updateDevice();
+        }
+        while ((queueHead != queueTail)
+                && (queueSample[queueHead] <= samplePosition)) {
+            Device device = queueDevice[queueHead];
+            if (null == device) {
+                queueHead = (queueHead + 1) & (queueSample.length - 1);
+                if (null != player) {
+                    player.updateDevice();
+                }
+                continue;
+            }
+            // Consecutive writes to a device are applied at once.
+            int count = 0;
+            do {
+                if (MAX_BATCH_WRITES == count) {
+                    device.writeRegisters(batchAddress, batchValue, count);
+                    count = 0;
+                }
+                batchAddress[count] = queueAddress[queueHead];
+                batchValue[count] = queueValue[queueHead];
+                count++;
+                queueDevice[queueHead] = null;
+                queueHead = (queueHead + 1) & (queueSample.length - 1);
+            } while ((queueHead != queueTail)
+                    && (queueSample[queueHead] <= samplePosition)
+                    && (queueDevice[queueHead] == device));
+            device.writeRegisters(batchAddress, batchValue, count);
+        }
+    }
+
     /**
      * Do partial slave channel audio mixing.
      * @param base base offset to generate
      * @param length buffer length to generate
      */
     private void generateInternal(final int base, final int length) {
-        Iterator<Channel> it = channels.iterator();
-        while (it.hasNext()) {
-            Channel channel = it.next();
-            channel.generate(length);
+        Slaves current = slaves;
+        Channel[] channels = current.channels;
+        ForkJoinPool parallelPool = pool;
+        if ((null != parallelPool) && (channels.length > 1)
+                && (length >= parallelThreshold)) {
+            current.prepare(length);
+            parallelPool.invoke(current);
+        } else {
+            for (int channel = 0; channel < channels.length; channel++) {
+                channels[channel].generate(length);
+            }
         }
-        int size = channels.size();
-        for (int offset = 0; offset < length; offset++) {
-            int value = 0;
-            for (int channel = 0; channel < size; channel++) {
-                value += (int) buffers[channel][offset];
+        short[][] monoBuffers = current.monoBuffers;
+        short[][] stereoBuffers = current.stereoBuffers;
+        int monoSize = monoBuffers.length;
+        int stereoSize = stereoBuffers.length;
+        for (int offset = 0; offset < length; offset += 2) {
+            int center = 0;
+            for (int channel = 0; channel < monoSize; channel++) {
+                center += (int) monoBuffers[channel][offset >> 1];
+            }
+            int left = center;
+            int right = center;
+            for (int channel = 0; channel < stereoSize; channel++) {
+                left += (int) stereoBuffers[channel][offset];
             }
-            value *= volume;
-            if (value > MAX_WAVE_VALUE) { value = MAX_WAVE_VALUE; }
-            if (value < MIN_WAVE_VALUE) { value = MIN_WAVE_VALUE; }
-            buffer[base + offset] = (short) value;
+            store(base + offset, left);
+            if (offset + 1 == length) {
+                break;
+            }
+            for (int channel = 0; channel < stereoSize; channel++) {
+                right += (int) stereoBuffers[channel][offset + 1];
+            }
+            store(base + offset + 1, right);
+        }
+    }
+
+    /**
+     * Store a mixed value with volume and saturation.
+     * @param index index to store
+     * @param mixed mixed value
+     */
+    private void store(final int index, final int mixed) {
+        int value = mixed * volume;
+        if (value > MAX_WAVE_VALUE) { value = MAX_WAVE_VALUE; }
+        if (value < MIN_WAVE_VALUE) { value = MIN_WAVE_VALUE; }
+        if (null != output) {
+            output.put(index, (short) value);
+        } else {
+            buffer[index] = (short) value;
         }
     }
 
+    /**
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public synchronized void setSampleRate(final int rate) {
+        sampleRate = rate;
+        Channel[] channels = slaves.channels;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].setSampleRate(rate);
+        }
+        setPlayerInterval(intervalMsec);
+    }
+
+    /**
+     * Get output sample rate.
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @see Channel
+     * @return LAYOUT_STEREO
+     */
+    public int getLayout() {
+        return LAYOUT_STEREO;
+    }
+
     /**
      * @see Channel
      * @param length buffer length or size in shorts
      */
-    public void setBufferLength(final int length) {
-        buffers = null;
+    public synchronized void setBufferLength(final int length) {
         buffer = new short[length];
         bufferLength = length;
-        Iterator<Channel> it = channels.iterator();
-        while (it.hasNext()) {
-            Channel channel = it.next();
-            channel.setBufferLength(length);
+        Channel[] channels = slaves.channels;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].setBufferLength(length);
         }
-        reconstructBuffers();
+        publish(channels);
     }
 
     /**
@@ -160,12 +500,29 @@ public final class MasterChannel implements Channel {
      * @param length buffer length or size in shorts to generate audio stream
      */
     public void generate(final int length) {
-        if (null == buffers) {
+        if (null == buffer) {
             return;
         }
-        if ((null == player) || (0 == intervalLength)) {
+        if (scheduleMode == SCHEDULE_TIMESTAMP) {
+            int offset = 0;
+            while (offset < length) {
+                dispatchSchedule();
+                int span = length - offset;
+                if (queueHead != queueTail) {
+                    long rest = queueSample[queueHead] - samplePosition;
+                    if (rest * SHORTS_PER_SAMPLE < span) {
+                        span = (int) rest * SHORTS_PER_SAMPLE;
+                    }
+                }
+                generateInternal(offset, span);
+                offset += span;
+                samplePosition += span / SHORTS_PER_SAMPLE;
+            }
+        } else if ((null == player) || (0 == intervalLength)) {
             generateInternal(0, length);
+            samplePosition += length / SHORTS_PER_SAMPLE;
         } else {
+            long start = samplePosition;
             int restLength = length;
             int offset = 0;
             while (restLength > intervalRestLength) {
@@ -173,12 +530,33 @@ public final class MasterChannel implements Channel {
                 restLength -= intervalRestLength;
                 offset += intervalRestLength;
                 intervalRestLength = intervalLength;
+                // The player sees the position of the call back.
+                samplePosition = start + offset / SHORTS_PER_SAMPLE;
                 player.updateDevice();
             }
             if (0 != restLength) {
                 generateInternal(offset, restLength);
                 intervalRestLength -= restLength;
             }
+            samplePosition = start + length / SHORTS_PER_SAMPLE;
+        }
+    }
+
+    /**
+     * Generate audio stream directly into the specified buffer instead of
+     * the internal buffer. The stream is written with absolute puts from
+     * index 0, so the buffer's byte order decides the output format and
+     * no conversion pass is needed. The buffer position is not modified.
+     * The internal buffer is left untouched.
+     * @param length buffer length or size in shorts to generate audio stream
+     * @param out buffer to write, which must have at least length shorts
+     */
+    public void generate(final int length, final ShortBuffer out) {
+        output = out;
+        try {
+            generate(length);
+        } finally {
+            output = null;
         }
     }
 }
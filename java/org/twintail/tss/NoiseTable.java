@@ -0,0 +1,218 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * class NoiseTable
+ *
+ * This class holds the output bit sequence of a noise LFSR, packed 32 bits
+ * per int, from a state until a state comes back. States before the loop
+ * position appear only once, and the rest repeats with the period.
+ * A noise generator is a position in the table, so that advancing it by
+ * any number of clocks is an addition modulo the period.
+ * The LFSR shifts right, and the parity of the state masked by the taps
+ * enters at the top bit. The output is the lowest bit. Periodic noise is
+ * an LFSR whose taps are only the second lowest bit, so that the lowest
+ * bit is dropped at the first clock, and the rest rotates.
+ * White noise tables are built once per LFSR and orbit, and shared.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+final class NoiseTable {
+    static final int PERIODIC_TAPS = 0x0002;
+    private static final int BITS_PER_INT = 32;
+    private static final int INDEX_SHIFT = 5;
+    private static final int BIT_MASK = BITS_PER_INT - 1;
+    private static final int SCAN_LENGTH = BITS_PER_INT;
+    private static final List<NoiseTable> TABLES =
+        new ArrayList<NoiseTable>();
+
+    private final int width;
+    private final int taps;
+    private final int loop;
+    private final int period;
+    private final int length;
+    private final int[] bits;
+    private int[] positions = null;
+
+    /**
+     * Class constructor.
+     * @param lfsrWidth LFSR width in bits
+     * @param lfsrTaps LFSR taps as bit mask
+     * @param state state at position 0
+     */
+    private NoiseTable(final int lfsrWidth, final int lfsrTaps,
+            final int state) {
+        width = lfsrWidth;
+        taps = lfsrTaps;
+
+        // Find the period and the loop position by Brent's algorithm.
+        int power = 1;
+        int lambda = 1;
+        int tortoise = state;
+        int hare = next(state);
+        while (tortoise != hare) {
+            if (power == lambda) {
+                tortoise = hare;
+                power <<= 1;
+                lambda = 0;
+            }
+            hare = next(hare);
+            lambda++;
+        }
+        tortoise = state;
+        hare = state;
+        for (int i = 0; i < lambda; i++) {
+            hare = next(hare);
+        }
+        int mu = 0;
+        while (tortoise != hare) {
+            tortoise = next(tortoise);
+            hare = next(hare);
+            mu++;
+        }
+        loop = mu;
+        period = lambda;
+        length = loop + period;
+
+        bits = new int[(length + BIT_MASK) >> INDEX_SHIFT];
+        int s = state;
+        for (int i = 0; i < length; i++) {
+            bits[i >> INDEX_SHIFT] |= (s & 1) << (i & BIT_MASK);
+            s = next(s);
+        }
+    }
+
+    /**
+     * Get a table of the orbit including a state.
+     * @param width LFSR width in bits
+     * @param taps LFSR taps as bit mask
+     * @param state LFSR state
+     * @return noise table
+     */
+    static NoiseTable getTable(final int width, final int taps,
+            final int state) {
+        if (PERIODIC_TAPS == taps) {
+            // Rotations are too many and too small to share.
+            return new NoiseTable(width, taps, state);
+        }
+        synchronized (TABLES) {
+            for (int i = 0; i < TABLES.size(); i++) {
+                NoiseTable table = TABLES.get(i);
+                if ((table.width == width) && (table.taps == taps)
+                        && (table.indexOf(state) >= 0)) {
+                    return table;
+                }
+            }
+            NoiseTable table = new NoiseTable(width, taps, state);
+            TABLES.add(table);
+            return table;
+        }
+    }
+
+    /**
+     * Calculate the next LFSR state.
+     * @param state current state
+     * @return next state
+     */
+    private int next(final int state) {
+        int feedback = Integer.bitCount(state & taps) & 1;
+        return (state >> 1) | (feedback << (width - 1));
+    }
+
+    /**
+     * Get the loop position.
+     * @return the position the table repeats from
+     */
+    int getLoop() {
+        return loop;
+    }
+
+    /**
+     * Get the period.
+     * @return the number of positions in the loop
+     */
+    int getPeriod() {
+        return period;
+    }
+
+    /**
+     * Get the length.
+     * @return the number of positions
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Get packed output bits. Bit (i % 32) of element (i / 32) is the
+     * output at position i.
+     * @return packed output bits
+     */
+    int[] getBits() {
+        return bits;
+    }
+
+    /**
+     * Get the output at a position.
+     * @param position position in the table
+     * @return output bit
+     */
+    int getBit(final int position) {
+        return (bits[position >> INDEX_SHIFT] >>> position) & 1;
+    }
+
+    /**
+     * Get the LFSR state at a position. Bit i of the state is the output
+     * after i clocks.
+     * @param position position in the table
+     * @return LFSR state
+     */
+    int getState(final int position) {
+        int state = 0;
+        int p = position;
+        for (int i = 0; i < width; i++) {
+            state |= getBit(p) << i;
+            if (++p == length) {
+                p = loop;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Find the position of a state.
+     * @param state LFSR state
+     * @return position, or -1 if the state is not in this orbit
+     */
+    int indexOf(final int state) {
+        if ((state >>> width) != 0) {
+            return -1;
+        }
+        if (length <= SCAN_LENGTH) {
+            for (int i = 0; i < length; i++) {
+                if (getState(i) == state) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        synchronized (this) {
+            if (null == positions) {
+                int[] newPositions = new int[1 << width];
+                Arrays.fill(newPositions, -1);
+                int s = getState(0);
+                for (int i = 0; i < length; i++) {
+                    newPositions[s] = i;
+                    s = next(s);
+                }
+                positions = newPositions;
+            }
+            return positions[state];
+        }
+    }
+}
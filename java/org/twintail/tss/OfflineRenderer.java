@@ -0,0 +1,269 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * class OfflineRenderer
+ *
+ * This class renders a Player's output as fast as the CPU allows, and
+ * writes it to a WAV or raw PCM stream. Output is 16-bit signed little
+ * endian stereo.
+ * The player is watched at every call back, so that rendering ends at the
+ * exact sample where the player finishes or reaches the loop limit.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class OfflineRenderer {
+    public static final int FORMAT_WAV = 0;
+    public static final int FORMAT_RAW = 1;
+    private static final int DEFAULT_BUFFER_LENGTH = 8192;
+    private static final int NUM_OF_CHANNELS = 2;
+    private static final int BYTES_PER_CHANNEL = 2;
+    private static final int BITS_PER_CHANNEL = 16;
+    private static final int BYTES_PER_SAMPLE =
+        NUM_OF_CHANNELS * BYTES_PER_CHANNEL;
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final int WAV_RIFF_ID = 0x46464952; // "RIFF"
+    private static final int WAV_WAVE_ID = 0x45564157; // "WAVE"
+    private static final int WAV_FMT_ID = 0x20746d66; // "fmt "
+    private static final int WAV_DATA_ID = 0x61746164; // "data"
+    private static final int WAV_FMT_SIZE = 16;
+    private static final short WAV_FORMAT_PCM = 1;
+    private static final int WAV_CHUNK_HEADER_SIZE = 8;
+    private static final long UINT_MAX = 0xffffffffL;
+
+    private int sampleRate = MasterChannel.SAMPLE_FREQUENCY;
+    private int bufferLength = DEFAULT_BUFFER_LENGTH;
+    private int format = FORMAT_WAV;
+    private ByteBuffer output = null;
+    private ShortBuffer outputShorts = null;
+
+    /**
+     * class StopWatcher
+     *
+     * This class calls back a player on behalf of the master channel, and
+     * remembers the sample position where the player stops first.
+     */
+    private static final class StopWatcher implements Player {
+        private final Player player;
+        private final MasterChannel master;
+        private final int loops;
+        private long stopPosition = -1;
+
+        /**
+         * Class constructor.
+         * @param target player to watch
+         * @param channel master channel driving the player
+         * @param maxLoops maximum number of loops to render, or 0
+         */
+        StopWatcher(final Player target, final MasterChannel channel,
+                final int maxLoops) {
+            player = target;
+            master = channel;
+            loops = maxLoops;
+        }
+
+        /**
+         * Check if the player should stop.
+         * @return true if the player finished or reached the loop limit
+         */
+        boolean isStopped() {
+            return player.isFinished()
+                    || ((0 != loops) && (player.getLoopCount() >= loops));
+        }
+
+        /**
+         * Get the sample position where the player stopped.
+         * @return sample position, or -1 if the player is running
+         */
+        long getStopPosition() {
+            return stopPosition;
+        }
+
+        /**
+         * @see Player
+         * @param channel master channel
+         */
+        public void setMasterChannel(final MasterChannel channel) {
+            player.setMasterChannel(channel);
+        }
+
+        /**
+         * @see Player
+         */
+        public void updateDevice() {
+            player.updateDevice();
+            if ((stopPosition < 0) && isStopped()) {
+                stopPosition = master.getSamplePosition();
+            }
+        }
+
+        /**
+         * @see Player
+         * @return loop count
+         */
+        public int getLoopCount() {
+            return player.getLoopCount();
+        }
+
+        /**
+         * @see Player
+         * @return true if nothing is left to play
+         */
+        public boolean isFinished() {
+            return player.isFinished();
+        }
+
+        /**
+         * @see Player
+         * @param input InputStream to play
+         * @return success or not
+         */
+        public boolean play(final InputStream input) {
+            return player.play(input);
+        }
+    }
+
+    /**
+     * Set output sample rate.
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * Set rendering block length.
+     * @param length buffer length or size in shorts
+     */
+    public void setBufferLength(final int length) {
+        bufferLength = length;
+        output = null;
+    }
+
+    /**
+     * Set output file format.
+     * @param newFormat FORMAT_WAV or FORMAT_RAW
+     */
+    public void setFormat(final int newFormat) {
+        format = newFormat;
+    }
+
+    /**
+     * Render a stream.
+     * Rendering stops when the player finishes, when it reaches the
+     * specified number of samples, or when it loops the specified number of
+     * times. Zero disables each limit. A looped stream without any limit is
+     * rendered forever.
+     * If the output channel is a SeekableByteChannel, the WAV header is
+     * updated with the actual length at the end.
+     * @param player player to decode the stream
+     * @param input stream to play
+     * @param samples maximum number of samples to render, or 0
+     * @param loops maximum number of loops to render, or 0
+     * @param out output channel
+     * @return the number of rendered samples, or -1 if the player can not
+     *         play the stream
+     * @throws IOException exception on writing
+     */
+    public long render(final Player player, final InputStream input,
+            final long samples, final int loops,
+            final WritableByteChannel out) throws IOException {
+        if (null == output) {
+            output = ByteBuffer.allocateDirect(Math.max(WAV_HEADER_SIZE,
+                    bufferLength * BYTES_PER_CHANNEL));
+            output.order(ByteOrder.LITTLE_ENDIAN);
+            outputShorts = output.asShortBuffer();
+        }
+        MasterChannel master = new MasterChannel();
+        master.setSampleRate(sampleRate);
+        master.setBufferLength(bufferLength);
+        player.setMasterChannel(master);
+        if (!player.play(input)) {
+            return -1;
+        }
+        StopWatcher watcher = new StopWatcher(player, master, loops);
+        master.setPlayer(watcher);
+
+        long start = 0;
+        if (format == FORMAT_WAV) {
+            if (out instanceof SeekableByteChannel) {
+                start = ((SeekableByteChannel) out).position();
+            }
+            writeWavHeader(out, (0 != samples) ? samples : -1);
+        }
+        long rendered = 0;
+        while (!watcher.isStopped()
+                && ((0 == samples) || (rendered < samples))) {
+            int length = bufferLength;
+            if ((0 != samples)
+                    && ((samples - rendered) * NUM_OF_CHANNELS < length)) {
+                length = (int) (samples - rendered) * NUM_OF_CHANNELS;
+            }
+            long position = master.getSamplePosition();
+            master.generate(length, outputShorts);
+            long stop = watcher.getStopPosition();
+            if (stop >= 0) {
+                // Drop samples rendered after the player stopped.
+                length = (int) Math.min(length,
+                        (stop - position) * NUM_OF_CHANNELS);
+            }
+            output.clear();
+            output.limit(length * BYTES_PER_CHANNEL);
+            while (output.hasRemaining()) {
+                out.write(output);
+            }
+            rendered += length / NUM_OF_CHANNELS;
+        }
+        if ((format == FORMAT_WAV) && (out instanceof SeekableByteChannel)) {
+            SeekableByteChannel seekable = (SeekableByteChannel) out;
+            long end = seekable.position();
+            seekable.position(start);
+            writeWavHeader(out, rendered);
+            seekable.position(end);
+        }
+        return rendered;
+    }
+
+    /**
+     * Write WAV file header.
+     * @param out output channel
+     * @param samples the number of samples in the data chunk, or -1 if it
+     *         is not known yet
+     * @throws IOException exception on writing
+     */
+    private void writeWavHeader(final WritableByteChannel out,
+            final long samples) throws IOException {
+        long dataSize = UINT_MAX - WAV_HEADER_SIZE;
+        if (samples >= 0) {
+            dataSize = Math.min(samples * BYTES_PER_SAMPLE, dataSize);
+        }
+        output.clear();
+        output.putInt(WAV_RIFF_ID);
+        output.putInt((int) (dataSize + WAV_HEADER_SIZE
+                - WAV_CHUNK_HEADER_SIZE));
+        output.putInt(WAV_WAVE_ID);
+        output.putInt(WAV_FMT_ID);
+        output.putInt(WAV_FMT_SIZE);
+        output.putShort(WAV_FORMAT_PCM);
+        output.putShort((short) NUM_OF_CHANNELS);
+        output.putInt(sampleRate);
+        output.putInt(sampleRate * BYTES_PER_SAMPLE);
+        output.putShort((short) BYTES_PER_SAMPLE);
+        output.putShort((short) BITS_PER_CHANNEL);
+        output.putInt(WAV_DATA_ID);
+        output.putInt((int) dataSize);
+        output.flip();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+    }
+}
@@ -21,9 +21,24 @@ public interface Player {
 
     /**
      * Channel reach to periodical call back point.
+     * In MasterChannel.SCHEDULE_TIMESTAMP mode, this is called when
+     * rendering reaches a point posted by MasterChannel.postPlayerUpdate(),
+     * or when no register write is posted.
      */
     void updateDevice();
 
+    /**
+     * Get how many times the stream looped back to its loop point.
+     * @return loop count
+     */
+    int getLoopCount();
+
+    /**
+     * Check if the stream reached its end, or stopped by an error.
+     * @return true if nothing is left to play
+     */
+    boolean isFinished();
+
     /**
      *  Decode and play.
      * @param input InputStream to play
@@ -3,11 +3,39 @@
  */
 package org.twintail.tss;
 
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
 /**
  * class PsgDeviceChannel
  *
  * This class implements PSG sound device as Device and Channel.
  * AY-3-8910 is a reference model.
+ * Sound is generated span by span. Each span runs to the next sample
+ * where an audible tone counter causes an edge, and samples before the
+ * edge are filled at once, split only by audible noise edges. Counters
+ * which can not be heard are advanced in closed form. The output is
+ * identical to one generated by stepping every counter at every sample.
+ * AY-3-8910 and YM-2149 use a kernel specialized for the mixer state,
+ * selected on register writes. See updateKernelAY().
+ * Blocks where audible tone edges are dense can use PsgToneKernel, since
+ * spans would be too short. See setVectorKernel().
+ * The envelope generator steps through 32 level shape tables. YM-2149
+ * walks all 32 levels, while AY-3-8910 walks 16 levels of even indices at
+ * twice the step length, so that a ramp lasts 16 tone periods of the same
+ * period value, i.e., 256 * EP chip clocks, on both.
+ * Its steps are edges of channels using the envelope, and it is advanced
+ * in closed form while no audible channel uses it.
+ * Noise generators are positions in shared LFSR output tables. See
+ * NoiseTable.
+ * Register writes go through a Device port of the emulated chip, which
+ * is chosen at setDevice(), and are decoded by per register effect
+ * tables. Out of range addresses and values are masked.
+ * Per voice outputs can be written in the same pass as the mixed one.
+ * See setVoiceOutput().
+ * Band-limited synthesis adds a minimum phase band-limited step at the
+ * sub-sample position of every edge. See setBandLimited() and BlepTable.
+ * The buffer is mono. See Channel.getLayout().
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
 public final class PsgDeviceChannel implements Device, Channel {
@@ -20,6 +48,15 @@ public final class PsgDeviceChannel implements Device, Channel {
     public static final int DEVICE_AY_3_8910 = 0;
     public static final int DEVICE_YM_2149 = 1;
     public static final int DEVICE_SN76489 = 2;
+    public static final int NOISE_LFSR_16 = 0;
+    public static final int NOISE_LFSR_15 = 1;
+    public static final int NOISE_LFSR_17 = 2;
+    public static final int STATE_SIZE = 43 + BlepTable.TAPS;
+    public static final int VOICE_A = 0;
+    public static final int VOICE_B = 1;
+    public static final int VOICE_C = 2;
+    public static final int VOICE_NOISE = 3;
+    public static final int VOICES = 4;
     public static final int REGISTER_AY_CH_A_TP_LOW = 0;
     public static final int REGISTER_AY_CH_A_TP_HIGH = 1;
     public static final int REGISTER_AY_CH_B_TP_LOW = 2;
@@ -75,8 +112,39 @@ public final class PsgDeviceChannel implements Device, Channel {
     private static final int DEFAULT_SN_CH_C_TP_HIGH = 0x00;
     private static final int REGISTERS = 16;
     private static final int CHANNELS = 3;
-    private static final int REGISTER_MIN_VALUE = 0;
-    private static final int REGISTER_MAX_VALUE = 255;
+    private static final int REGISTER_ADDRESS_MASK = 0x0f;
+    private static final int REGISTER_VALUE_MASK = 0xff;
+    private static final int EFFECT_NONE = 0;
+    private static final int EFFECT_TONE = 1;
+    private static final int EFFECT_VOLUME = 2;
+    private static final int EFFECT_NOISE = 3;
+    private static final int EFFECT_NOISE_VOLUME = 4;
+    private static final int EFFECT_MIXER = 5;
+    private static final int EFFECT_ENVELOPE_PERIOD = 6;
+    private static final int EFFECT_ENVELOPE_SHAPE = 7;
+    private static final int[] AY_EFFECT = {
+        EFFECT_TONE, EFFECT_TONE, EFFECT_TONE, EFFECT_TONE,
+        EFFECT_TONE, EFFECT_TONE, EFFECT_NOISE, EFFECT_MIXER,
+        EFFECT_VOLUME, EFFECT_VOLUME, EFFECT_VOLUME, EFFECT_ENVELOPE_PERIOD,
+        EFFECT_ENVELOPE_PERIOD, EFFECT_ENVELOPE_SHAPE, EFFECT_NONE,
+        EFFECT_NONE,
+    };
+    private static final int[] AY_CHANNEL = {
+        0, 0, 1, 1, 2, 2, 0, 0, 0, 1, 2, 0, 0, 0, 0, 0,
+    };
+    private static final int[] SN_EFFECT = {
+        EFFECT_TONE, EFFECT_NONE, EFFECT_TONE, EFFECT_NONE,
+        EFFECT_TONE, EFFECT_NONE, EFFECT_NONE, EFFECT_NONE,
+        EFFECT_TONE, EFFECT_VOLUME, EFFECT_TONE, EFFECT_VOLUME,
+        EFFECT_TONE, EFFECT_VOLUME, EFFECT_NOISE, EFFECT_NOISE_VOLUME,
+    };
+    private static final int[] SN_CHANNEL = {
+        0, 0, 1, 0, 2, 0, 0, 0, 0, 0, 1, 1, 2, 2, 0, 0,
+    };
+    private static final int SN_TP_LOW_BASE = 8;
+    private static final int AY_TONE_BITS = 0x0003;
+    private static final int AY_ENVELOPE_PERIOD_BITS = 0x1800;
+    private static final int AY_LEVEL_BITS = 0x0780;
     private static final int BITS_PER_BYTE = 8;
     private static final int NOISE_TP_MASK = 0x1f;
     private static final int MIXER_CH_A_TONE = 1;
@@ -93,12 +161,14 @@ public final class PsgDeviceChannel implements Device, Channel {
     private static final int CLOCK_BIAS = 16000;
     private static final int STEP_BIAS = 18;
     private static final int VOLUME_BIAS = 3;
-    private static final short DEFAULT_AY_SEED = -1;
-    private static final short DEFAULT_SN_SEED = -32768;
-    private static final short UPDATE_SEED_MASK = 0x0009;
-    private static final int UPDATE_SEED_RSHIFT = 3;
-    private static final int UPDATE_SEED_LSHIFT = 15;
-    private static final int SHORT_MASK = 0xffff;
+    private static final int[] NOISE_WIDTH = { 16, 15, 17 };
+    private static final int[] NOISE_TAPS = { 0x0009, 0x0003, 0x0009 };
+    private static final int INT_INDEX_SHIFT = 5;
+    private static final int FLAG_ENVELOPE = 0;
+    private static final int FLAG_ACTIVE = FLAG_ENVELOPE + CHANNELS;
+    private static final int FLAG_MIXER_TONE = FLAG_ACTIVE + CHANNELS;
+    private static final int FLAG_MIXER_NOISE = FLAG_MIXER_TONE + CHANNELS;
+    private static final int FLAG_FEEDBACK = FLAG_MIXER_NOISE + CHANNELS;
     private static final int HALF_MASK = 0x0f;
     private static final int HALF_SHIFT = 4;
     private static final int BYTE_MSB_MASK = 0x80;
@@ -125,11 +195,71 @@ public final class PsgDeviceChannel implements Device, Channel {
             0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
         },
     };
+    private static final int ENVELOPE_SHAPES = 16;
+    private static final int ENVELOPE_STEP_SCALE = 5;
+    private static final int ENVELOPE_STEPS = 32;
+    private static final int ENVELOPE_LOOP = ENVELOPE_STEPS;
+    private static final int ENVELOPE_LENGTH = ENVELOPE_STEPS * 3;
+    private static final int ENVELOPE_MAX_LEVEL = ENVELOPE_STEPS - 1;
+    private static final int ENVELOPE_SHAPE_MASK = 0x0f;
+    private static final int ENVELOPE_CONTINUE = 0x08;
+    private static final int ENVELOPE_ATTACK = 0x04;
+    private static final int ENVELOPE_ALTERNATE = 0x02;
+    private static final int ENVELOPE_HOLD = 0x01;
+    private static final int ENVELOPE_STRIDE_AY = 2;
+    private static final int ENVELOPE_STRIDE_YM = 1;
+    private static final int ENVELOPE_LEVEL_MASK_AY = 0x1e;
+    private static final int ENVELOPE_LEVEL_MASK_YM = 0x1f;
+    private static final String TONE_VECTOR_KERNEL =
+        "org.twintail.tss.PsgToneVectorKernel";
+    private static final int DENSE_EDGE_SAMPLES = 16;
+    private static final int KERNEL_MUTED = 0;
+    private static final int KERNEL_TONE = 1;
+    private static final int KERNEL_MIXED = 2;
+    private static final int LEVEL_TONE = 1;
+    private static final int LEVEL_NOISE = 2;
+    private static final int LEVELS = 4;
     private static final int[] NOISE_TP_TABLE = {
         128, 256, 512, 0,
     };
 
+    /**
+     * Envelope levels for each shape. The first ENVELOPE_STEPS steps are
+     * the first ramp, and the rest is repeated from ENVELOPE_LOOP forever.
+     */
+    private static final int[][] ENVELOPE_TABLE =
+        new int[ENVELOPE_SHAPES][ENVELOPE_LENGTH];
+
+    static {
+        for (int shape = 0; shape < ENVELOPE_SHAPES; shape++) {
+            boolean attack = 0 != (shape & ENVELOPE_ATTACK);
+            for (int i = 0; i < ENVELOPE_LENGTH; i++) {
+                int step = i % ENVELOPE_STEPS;
+                int ramp = i / ENVELOPE_STEPS;
+                boolean up = attack;
+                int level;
+                if (0 == ramp) {
+                    level = up ? step : ENVELOPE_MAX_LEVEL - step;
+                } else if (0 == (shape & ENVELOPE_CONTINUE)) {
+                    level = 0;
+                } else if (0 != (shape & ENVELOPE_HOLD)) {
+                    boolean high = attack
+                        != (0 != (shape & ENVELOPE_ALTERNATE));
+                    level = high ? ENVELOPE_MAX_LEVEL : 0;
+                } else {
+                    if ((0 != (shape & ENVELOPE_ALTERNATE))
+                            && (1 == (ramp & 1))) {
+                        up = !up;
+                    }
+                    level = up ? step : ENVELOPE_MAX_LEVEL - step;
+                }
+                ENVELOPE_TABLE[shape][i] = level;
+            }
+        }
+    }
+
     private int clock = CLOCK_3_58MHZ;
+    private int sampleRate = MasterChannel.SAMPLE_FREQUENCY;
     private int mode = MODE_UNSIGNED;
     private int device = DEVICE_AY_3_8910;
     private int activeRegister = 0;
@@ -140,15 +270,67 @@ public final class PsgDeviceChannel implements Device, Channel {
     private short[] volume = new short[CHANNELS];
     private boolean[] envelope = new boolean[CHANNELS];
     private boolean[] active = new boolean[CHANNELS];
-    private short seed = DEFAULT_AY_SEED;
+    private int noiseType = NOISE_LFSR_16;
+    private NoiseTable noiseTable = null;
+    private int[] noiseBits = null;
+    private int noiseLoop = 0;
+    private int noisePeriod = 0;
+    private int noiseLength = 0;
+    private int noisePosition = 0;
     private int[] stepTone = new int[CHANNELS];
     private int[] countTone = new int[CHANNELS];
     private boolean[] mixerTone = new boolean[CHANNELS];
     private int stepNoise = 0;
     private int countNoise = 0;
+    private int baseStepEnvelope = 0;
+    private int stepEnvelope = 0;
+    private int countEnvelope = 0;
+    private int[] envelopeShape = ENVELOPE_TABLE[0];
+    private int envelopePosition = 0;
+    private int envelopeStride = ENVELOPE_STRIDE_AY;
+    private int envelopeLevelMask = ENVELOPE_LEVEL_MASK_AY;
+    private short envelopeVolume = 0;
     private boolean[] mixerNoise = new boolean[CHANNELS];
     private boolean feedback = false;
     private int volumeNoise = 0;
+    private boolean[] audible = new boolean[CHANNELS];
+    private boolean audibleNoise = false;
+    private boolean audibleEnvelope = false;
+    private int skipEvents = 0;
+    private int kernel = KERNEL_MUTED;
+    private int[] level = new int[CHANNELS * LEVELS];
+    private int silentSamples = 0;
+    private PsgToneKernel toneKernel = null;
+    private short[] toneTable = new short[1 << CHANNELS];
+    private short[][] voiceBuffers = null;
+    private final Device portAY = new Device() {
+        public void writeRegister(final int address, final int value) {
+            writeRegisterAY(address, value);
+        }
+        public void writeRegisters(final int[] addresses,
+                final int[] values, final int count) {
+            writeRegistersAY(addresses, values, count);
+        }
+        public int readRegister(final int address) {
+            return PsgDeviceChannel.this.readRegister(address);
+        }
+    };
+    private final Device portSN = new Device() {
+        public void writeRegister(final int address, final int value) {
+            writeRegisterSN(address, value);
+        }
+        public void writeRegisters(final int[] addresses,
+                final int[] values, final int count) {
+            writeRegistersSN(addresses, values, count);
+        }
+        public int readRegister(final int address) {
+            return PsgDeviceChannel.this.readRegister(address);
+        }
+    };
+    private Device port = portAY;
+    private int[] blepTable = null;
+    private int[] blepResidual = null;
+    private int blepLevel = 0;
 
     /**
      * Class constructor.
@@ -159,6 +341,69 @@ public final class PsgDeviceChannel implements Device, Channel {
         setDevice(DEVICE_AY_3_8910);
     }
 
+    /**
+     * class ToneKernelHolder
+     *
+     * This class looks up the vector tone kernel once, on the first use.
+     */
+    private static final class ToneKernelHolder {
+        private static final Constructor<?> CONSTRUCTOR = findToneKernel();
+
+        /**
+         * Class constructor. This class can not be instantiated.
+         */
+        private ToneKernelHolder() {
+        }
+
+        /**
+         * Find the vector tone kernel if the platform supports it.
+         * @return constructor of the kernel, or null if it is not available
+         */
+        private static Constructor<?> findToneKernel() {
+            try {
+                return Class.forName(TONE_VECTOR_KERNEL)
+                        .getDeclaredConstructor();
+            } catch (Exception e) {
+                return null;
+            } catch (LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Create the vector tone kernel. Each device has its own kernel, since
+     * the kernel has work buffers.
+     * @return tone kernel, or null if it is not available
+     */
+    private static PsgToneKernel createToneKernel() {
+        if (null == ToneKernelHolder.CONSTRUCTOR) {
+            return null;
+        }
+        try {
+            return (PsgToneKernel) ToneKernelHolder.CONSTRUCTOR.newInstance();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Enable or disable the vector tone kernel. It is disabled by default,
+     * and can be enabled only if PsgToneVectorKernel and the
+     * jdk.incubator.vector module are available. Output is identical
+     * either way.
+     * @param enable true to use the vector tone kernel
+     * @return true if the vector tone kernel is used
+     */
+    public boolean setVectorKernel(final boolean enable) {
+        if (!enable) {
+            toneKernel = null;
+        } else if (null == toneKernel) {
+            toneKernel = createToneKernel();
+        }
+        return null != toneKernel;
+    }
+
     /**
      * Set device clock frequency in Hz.
      * @param hz clock frequency in Hz
@@ -166,7 +411,21 @@ public final class PsgDeviceChannel implements Device, Channel {
     public void setClock(final int hz) {
         clock = hz; // tone frequency = clock / 32TP
         baseStep = (int) ((long) CLOCK_BIAS * (long) clock
-                / (long) MasterChannel.SAMPLE_FREQUENCY);
+                / (long) sampleRate);
+        // SN76489 noise steps do not depend on the clock, as tone steps.
+        if (device != DEVICE_SN76489) {
+            updateNoiseAY();
+        }
+        updateEnvelopeStep();
+    }
+
+    /**
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+        setClock(clock);
     }
 
     /**
@@ -179,6 +438,7 @@ public final class PsgDeviceChannel implements Device, Channel {
      */
     public void setMode(final int newMode) {
         mode = newMode;
+        updateKernelAY();
     }
 
     /**
@@ -214,7 +474,7 @@ public final class PsgDeviceChannel implements Device, Channel {
         setRegisterSN(REGISTER_SN_NOISE_CONTROL, DEFAULT_SN_NOISE_CONTROL, 0);
         setRegisterSN(REGISTER_SN_NOISE_VOLUME, DEFAULT_SN_NOISE_VOLUME, 0);
         activeRegister = 0;
-        seed = DEFAULT_SN_SEED;
+        resetNoise();
     }
 
     /**
@@ -235,16 +495,37 @@ public final class PsgDeviceChannel implements Device, Channel {
         writeRegister(REGISTER_AY_EP_LOW, DEFAULT_AY_EP_LOW);
         writeRegister(REGISTER_AY_EP_HIGH, DEFAULT_AY_EP_HIGH);
         writeRegister(REGISTER_AY_EP_CONTROL, DEFAULT_AY_EP_CONTROL);
-        seed = DEFAULT_AY_SEED;
+        resetNoise();
     }
 
     /**
-     * Set emulated device target.
+     * Select the volume table and the register port of a device.
      * @param target target device
      */
-    public void setDevice(final int target) {
+    private void selectDevice(final int target) {
         device = target;
         volumeTable = VOLUME_TABLE[target];
+        if (device == DEVICE_SN76489) {
+            port = portSN;
+        } else {
+            port = portAY;
+        }
+        if (device == DEVICE_YM_2149) {
+            envelopeStride = ENVELOPE_STRIDE_YM;
+            envelopeLevelMask = ENVELOPE_LEVEL_MASK_YM;
+        } else {
+            envelopeStride = ENVELOPE_STRIDE_AY;
+            envelopeLevelMask = ENVELOPE_LEVEL_MASK_AY;
+        }
+        updateEnvelopeStep();
+    }
+
+    /**
+     * Set emulated device target.
+     * @param target target device
+     */
+    public void setDevice(final int target) {
+        selectDevice(target);
         for (int i = 0; i < CHANNELS; i++) {
             active[i] = true;
             countTone[i] = 0;
@@ -256,12 +537,79 @@ public final class PsgDeviceChannel implements Device, Channel {
         }
     }
 
+    /**
+     * @see Channel
+     * @return LAYOUT_MONO
+     */
+    public int getLayout() {
+        return LAYOUT_MONO;
+    }
+
     /**
      * @see Channel
      * @param length buffer length or size in shorts
      */
     public void setBufferLength(final int length) {
-        buffer = new short[length];
+        buffer = new short[(length + 1) >> 1];
+        silentSamples = 0;
+        if (null != voiceBuffers) {
+            voiceBuffers = new short[VOICES][buffer.length];
+        }
+        if (null != blepResidual) {
+            blepResidual = new int[buffer.length + BlepTable.TAPS];
+        }
+    }
+
+    /**
+     * Enable or disable band-limited synthesis. If enabled, a minimum
+     * phase band-limited step is added at every audible edge, at the sub
+     * sample position of the edge, so that square waves do not alias
+     * even at low sample rates. Per voice outputs are not band-limited.
+     * @param enable true to enable band-limited synthesis
+     */
+    public void setBandLimited(final boolean enable) {
+        if (!enable) {
+            blepTable = null;
+            blepResidual = null;
+        } else if (null == blepResidual) {
+            int length = 0;
+            if (null != buffer) {
+                length = buffer.length;
+            }
+            blepTable = BlepTable.getResidual();
+            blepResidual = new int[length + BlepTable.TAPS];
+            blepLevel = mix();
+        }
+    }
+
+    /**
+     * Enable or disable per voice outputs. If enabled, generate() writes
+     * the output of each voice into its own buffer in the same pass, as
+     * well as the mixed output into the internal buffer.
+     * On AY-3-8910 and YM-2149, noise is a part of channel outputs, and
+     * the VOICE_NOISE buffer keeps silent.
+     * @param enable true to enable per voice outputs
+     */
+    public void setVoiceOutput(final boolean enable) {
+        if (!enable) {
+            voiceBuffers = null;
+        } else if (null == voiceBuffers) {
+            int length = 0;
+            if (null != buffer) {
+                length = buffer.length;
+            }
+            voiceBuffers = new short[VOICES][length];
+        }
+    }
+
+    /**
+     * Get per voice output buffer. It is valid only while per voice
+     * outputs are enabled, and until setBufferLength() is called.
+     * @param voice VOICE_A, VOICE_B, VOICE_C, or VOICE_NOISE
+     * @return audio stream buffer of the voice
+     */
+    public short[] getVoiceBuffer(final int voice) {
+        return voiceBuffers[voice];
     }
 
     /**
@@ -272,6 +620,524 @@ public final class PsgDeviceChannel implements Device, Channel {
         return buffer;
     }
 
+    /**
+     * Pack boolean flags of all channels into bits.
+     * @param flags flags to pack
+     * @param shift bit position of the first channel
+     * @return packed bits
+     */
+    private static int packFlags(final boolean[] flags, final int shift) {
+        int bits = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (flags[channel]) {
+                bits |= 1 << (shift + channel);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Unpack boolean flags of all channels from bits.
+     * @param flags flags to unpack to
+     * @param bits packed bits
+     * @param shift bit position of the first channel
+     */
+    private static void unpackFlags(final boolean[] flags, final int bits,
+            final int shift) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            flags[channel] = 0 != (bits & (1 << (shift + channel)));
+        }
+    }
+
+    /**
+     * Save device state, i.e., settings, registers, counters, noise
+     * generator, and the band-limited step tail if enabled, so that
+     * restoreState() can resume generation from this point exactly. The
+     * buffer is not saved.
+     * @param state array to save the state in STATE_SIZE ints
+     * @param offset offset in the array to save the state
+     * @return offset next to the saved state
+     */
+    public int saveState(final int[] state, final int offset) {
+        int i = offset;
+        state[i++] = device;
+        state[i++] = mode;
+        state[i++] = clock;
+        state[i++] = sampleRate;
+        state[i++] = noiseType;
+        state[i++] = activeRegister;
+        for (int r = 0; r < REGISTERS; r++) {
+            state[i++] = register[r];
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            state[i++] = volume[channel];
+            state[i++] = stepTone[channel];
+            state[i++] = countTone[channel];
+        }
+        int flags = packFlags(envelope, FLAG_ENVELOPE)
+                | packFlags(active, FLAG_ACTIVE)
+                | packFlags(mixerTone, FLAG_MIXER_TONE)
+                | packFlags(mixerNoise, FLAG_MIXER_NOISE);
+        if (feedback) {
+            flags |= 1 << FLAG_FEEDBACK;
+        }
+        state[i++] = flags;
+        state[i++] = noiseTable.getState(noisePosition);
+        state[i++] = stepNoise;
+        state[i++] = countNoise;
+        state[i++] = volumeNoise;
+        int shape = 0;
+        while (ENVELOPE_TABLE[shape] != envelopeShape) {
+            shape++;
+        }
+        state[i++] = shape;
+        state[i++] = envelopePosition;
+        state[i++] = envelopeVolume;
+        state[i++] = stepEnvelope;
+        state[i++] = countEnvelope;
+        if (null != blepResidual) {
+            state[i++] = 1;
+            state[i++] = blepLevel;
+            System.arraycopy(blepResidual, 0, state, i, BlepTable.TAPS);
+        } else {
+            state[i++] = 0;
+            state[i++] = 0;
+            Arrays.fill(state, i, i + BlepTable.TAPS, 0);
+        }
+        i += BlepTable.TAPS;
+        return i;
+    }
+
+    /**
+     * Restore device state saved by saveState(). Band-limited synthesis
+     * is kept as set by setBandLimited(). If it is enabled, but was not
+     * on saving, it starts from the restored output without any pending
+     * step.
+     * @param state array holding the state
+     * @param offset offset in the array of the state
+     * @return offset next to the restored state
+     */
+    public int restoreState(final int[] state, final int offset) {
+        int i = offset;
+        selectDevice(state[i++]);
+        mode = state[i++];
+        clock = state[i++];
+        sampleRate = state[i++];
+        setClock(clock);
+        noiseType = state[i++];
+        activeRegister = state[i++];
+        for (int r = 0; r < REGISTERS; r++) {
+            register[r] = state[i++];
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            volume[channel] = (short) state[i++];
+            stepTone[channel] = state[i++];
+            countTone[channel] = state[i++];
+        }
+        int flags = state[i++];
+        unpackFlags(envelope, flags, FLAG_ENVELOPE);
+        unpackFlags(active, flags, FLAG_ACTIVE);
+        unpackFlags(mixerTone, flags, FLAG_MIXER_TONE);
+        unpackFlags(mixerNoise, flags, FLAG_MIXER_NOISE);
+        feedback = 0 != (flags & (1 << FLAG_FEEDBACK));
+        setNoiseState(state[i++]);
+        stepNoise = state[i++];
+        countNoise = state[i++];
+        volumeNoise = state[i++];
+        envelopeShape = ENVELOPE_TABLE[state[i++]];
+        envelopePosition = state[i++];
+        envelopeVolume = (short) state[i++];
+        stepEnvelope = state[i++];
+        countEnvelope = state[i++];
+        silentSamples = 0;
+        updateKernelAY();
+        boolean bandLimited = 0 != state[i++];
+        int savedLevel = state[i++];
+        if (null != blepResidual) {
+            if (bandLimited) {
+                blepLevel = savedLevel;
+                System.arraycopy(state, i, blepResidual, 0, BlepTable.TAPS);
+            } else {
+                blepLevel = mix();
+                Arrays.fill(blepResidual, 0, BlepTable.TAPS, 0);
+            }
+        }
+        i += BlepTable.TAPS;
+        return i;
+    }
+
+    /**
+     * Check if the last generated stream is silent, i.e., every channel
+     * was muted, so that mixers can skip the buffer.
+     * @return true if the buffer contains only silence
+     */
+    boolean isSilent() {
+        return 0 != silentSamples;
+    }
+
+    /**
+     * Count samples until a counter causes the next event. A counter is
+     * advanced by baseStep at every sample, and causes an event at a sample
+     * where it exceeds the step.
+     * @param count current counter value
+     * @param step step to cause an event
+     * @param limit maximum samples to count
+     * @return samples until the event inclusive, or limit if no event
+     *         happens in limit samples
+     */
+    private int samplesToEvent(final int count, final int step,
+            final int limit) {
+        return samplesToEvent(count, step, baseStep, limit);
+    }
+
+    /**
+     * Count samples until a counter causes the next event.
+     * @param count current counter value
+     * @param step step to cause an event
+     * @param base value to advance the counter at every sample
+     * @param limit maximum samples to count
+     * @return samples until the event inclusive, or limit if no event
+     *         happens in limit samples
+     */
+    private int samplesToEvent(final int count, final int step,
+            final int base, final int limit) {
+        int next = count + base;
+        if (next > step) {
+            return 1;
+        }
+        long samples = ((long) step - (long) next) / (long) base + 2;
+        if (samples > limit) {
+            return limit;
+        }
+        return (int) samples;
+    }
+
+    /**
+     * Advance a counter which subtracts the step on each event, i.e.,
+     * a tone counter or an AY-3-8910 noise counter, by specified samples.
+     * The number of events is stored to skipEvents.
+     * @param count current counter value
+     * @param step step to cause an event
+     * @param samples samples to advance
+     * @return advanced counter value
+     */
+    private int skipCount(final int count, final int step,
+            final int samples) {
+        return skipCount(count, step, baseStep, samples);
+    }
+
+    /**
+     * Advance a counter which subtracts the step on each event by specified
+     * samples. The number of events is stored to skipEvents.
+     * @param count current counter value
+     * @param step step to cause an event
+     * @param base value to advance the counter at every sample
+     * @param samples samples to advance
+     * @return advanced counter value
+     */
+    private int skipCount(final int count, final int step, final int base,
+            final int samples) {
+        int newCount = count;
+        int rest = samples;
+        int events = 0;
+        // Step one by one while the counter is out of the range where
+        // exactly one event happens in every step / base samples,
+        // e.g., just after the step is shortened, or on overflows.
+        while ((rest > 0) && ((newCount < 0) || (newCount > step)
+                || (base > step)
+                || (step > Integer.MAX_VALUE - base))) {
+            newCount += base;
+            if (newCount > step) {
+                newCount -= step;
+                events++;
+            }
+            rest--;
+        }
+        if (rest > 0) {
+            long total = (long) newCount + (long) rest * (long) base;
+            long n = (total - 1) / (long) step;
+            newCount = (int) (total - n * (long) step);
+            events += (int) n;
+        }
+        skipEvents = events;
+        return newCount;
+    }
+
+    /**
+     * Advance SN76489 noise counter by specified samples. The counter
+     * never subtracts the step, so that it causes an event at every sample
+     * until it overflows once it exceeds the step.
+     * The number of events is stored to skipEvents.
+     * @param count current counter value
+     * @param step step to cause an event
+     * @param samples samples to advance
+     * @return advanced counter value
+     */
+    private int skipCountSN(final int count, final int step,
+            final int samples) {
+        long newCount = count;
+        long rest = samples;
+        int events = 0;
+        while (rest > 0) {
+            long next = newCount + baseStep;
+            long n = 1;
+            if (next > Integer.MAX_VALUE) {
+                newCount = (int) next;
+            } else if (next > step) {
+                n = Math.min(rest,
+                        ((long) Integer.MAX_VALUE - newCount) / baseStep);
+                newCount += n * baseStep;
+                events += (int) n;
+            } else {
+                n = Math.min(rest, ((long) step - newCount) / baseStep);
+                newCount += n * baseStep;
+            }
+            rest -= n;
+        }
+        skipEvents = events;
+        return (int) newCount;
+    }
+
+    /**
+     * Set noise LFSR type. NOISE_LFSR_16 is the default for all devices,
+     * and is the one of Sega SN76489 variants. NOISE_LFSR_15 is the one of
+     * TI SN76489, and NOISE_LFSR_17 is the one of AY-3-8910 and YM-2149.
+     * The LFSR is reset.
+     * @param type noise LFSR type
+     */
+    public void setNoise(final int type) {
+        noiseType = type;
+        resetNoise();
+    }
+
+    /**
+     * Reset noise LFSR to the initial state of the device.
+     */
+    private void resetNoise() {
+        int width = NOISE_WIDTH[noiseType];
+        if (device == DEVICE_SN76489) {
+            setNoiseState(1 << (width - 1));
+        } else {
+            setNoiseState((1 << width) - 1);
+        }
+    }
+
+    /**
+     * Set noise LFSR state. The noise generator is moved to the state in
+     * the table of the current LFSR, or the periodic table of the state
+     * if SN76489 periodic noise is selected.
+     * @param state LFSR state
+     */
+    private void setNoiseState(final int state) {
+        int taps = NOISE_TAPS[noiseType];
+        if ((device == DEVICE_SN76489) && !feedback) {
+            taps = NoiseTable.PERIODIC_TAPS;
+        }
+        noiseTable = NoiseTable.getTable(NOISE_WIDTH[noiseType], taps, state);
+        noiseBits = noiseTable.getBits();
+        noiseLoop = noiseTable.getLoop();
+        noisePeriod = noiseTable.getPeriod();
+        noiseLength = noiseTable.getLength();
+        noisePosition = noiseTable.indexOf(state);
+    }
+
+    /**
+     * Get current noise output.
+     * @return true if the noise output is high
+     */
+    private boolean noise() {
+        return 0 != ((noiseBits[noisePosition >> INT_INDEX_SHIFT]
+                >>> noisePosition) & 1);
+    }
+
+    /**
+     * Advance noise generator by one clock.
+     */
+    private void updateSeed() {
+        if (++noisePosition == noiseLength) {
+            noisePosition = noiseLoop;
+        }
+    }
+
+    /**
+     * Advance noise generator by specified clocks.
+     * @param clocks clocks to advance
+     */
+    private void skipSeed(final int clocks) {
+        long position = noisePosition + (long) clocks;
+        if (position >= noiseLength) {
+            position = noiseLoop + (position - noiseLoop) % noisePeriod;
+        }
+        noisePosition = (int) position;
+    }
+
+    /**
+     * Advance tone counters by specified samples.
+     * Audible counters must not cause any event in the samples.
+     * @param samples samples to advance
+     */
+    private void skipTone(final int samples) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (audible[channel]) {
+                countTone[channel] += samples * baseStep;
+            } else {
+                countTone[channel] = skipCount(countTone[channel],
+                        stepTone[channel], samples);
+                if (0 != (skipEvents & 1)) {
+                    active[channel] = !active[channel];
+                }
+            }
+        }
+    }
+
+    /**
+     * Advance tone counters by one sample.
+     */
+    private void stepTone() {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            countTone[channel] += baseStep;
+            if (countTone[channel] > stepTone[channel]) {
+                countTone[channel] -= stepTone[channel];
+                active[channel] = !active[channel];
+            }
+        }
+    }
+
+    /**
+     * Mix current outputs of SN76489.
+     * @param noise noise output
+     * @return mixed value
+     */
+    private short mixSN(final boolean noise) {
+        short value = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (active[channel]) {
+                value += volume[channel];
+            } else if (mode == MODE_SIGNED) {
+                value -= volume[channel];
+            }
+        }
+        if (noise) {
+            value += volumeNoise;
+        } else if (mode == MODE_SIGNED) {
+            value -= volumeNoise;
+        }
+        return value;
+    }
+
+    /**
+     * Mix current outputs of AY-3-8910 or YM-2149.
+     * @param noise noise output
+     * @return mixed value
+     */
+    private short mixAY(final boolean noise) {
+        int index = noise ? LEVEL_NOISE : 0;
+        short value = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (active[channel]) {
+                value += level[index + LEVEL_TONE];
+            } else {
+                value += level[index];
+            }
+            index += LEVELS;
+        }
+        return value;
+    }
+
+    /**
+     * Update output levels and select the render kernel of AY-3-8910 or
+     * YM-2149. This must be called whenever the mixer, a volume, the
+     * envelope level, or the mode is changed.
+     * level[channel * LEVELS + {tone bit} + {noise bit}] holds the output
+     * of a channel for each combination of tone and noise outputs, so that
+     * mixing is done without any branch on the mixer state.
+     */
+    private void updateKernelAY() {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            updateLevelAY(channel);
+        }
+        selectKernelAY();
+    }
+
+    /**
+     * Update output levels of a channel of AY-3-8910 or YM-2149.
+     * selectKernelAY() must follow.
+     * @param channel channel to update
+     */
+    private void updateLevelAY(final int channel) {
+        int on = volume[channel];
+        int off = 0;
+        if (mixerTone[channel] && mixerNoise[channel]
+                && (mode == MODE_SIGNED)) {
+            off = -on;
+        }
+        int index = channel * LEVELS;
+        level[index] = off;
+        if (mixerTone[channel]) {
+            level[index + LEVEL_TONE] = on;
+        } else {
+            level[index + LEVEL_TONE] = off;
+        }
+        if (mixerNoise[channel]) {
+            level[index + LEVEL_NOISE] = on;
+        } else {
+            level[index + LEVEL_NOISE] = off;
+        }
+        if (mixerTone[channel] || mixerNoise[channel]) {
+            level[index + LEVEL_TONE + LEVEL_NOISE] = on;
+        } else {
+            level[index + LEVEL_TONE + LEVEL_NOISE] = off;
+        }
+        boolean loud = envelope[channel] || (0 != volume[channel]);
+        audible[channel] = mixerTone[channel] && loud;
+    }
+
+    /**
+     * Select the render kernel of AY-3-8910 or YM-2149 from the current
+     * channel states.
+     */
+    private void selectKernelAY() {
+        boolean audibleTone = false;
+        audibleNoise = false;
+        audibleEnvelope = false;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            boolean loud = envelope[channel] || (0 != volume[channel]);
+            if (audible[channel]) {
+                audibleTone = true;
+            }
+            if (mixerNoise[channel] && loud) {
+                audibleNoise = true;
+            }
+            if (envelope[channel]
+                    && (mixerTone[channel] || mixerNoise[channel])) {
+                audibleEnvelope = true;
+            }
+        }
+        if (audibleNoise) {
+            kernel = KERNEL_MIXED;
+        } else if (audibleTone) {
+            kernel = KERNEL_TONE;
+        } else {
+            kernel = KERNEL_MUTED;
+        }
+    }
+
+    /**
+     * Count samples until an audible tone counter causes the next edge.
+     * @param limit maximum samples to count
+     * @return samples until the edge inclusive, or limit
+     */
+    private int samplesToToneEdge(final int limit) {
+        int run = limit;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (audible[channel]) {
+                run = samplesToEvent(countTone[channel], stepTone[channel],
+                        run);
+            }
+        }
+        return run;
+    }
+
     /**
      * Generate specified length sound stream into internal buffer
      * of SN76489.
@@ -285,39 +1151,310 @@ public final class PsgDeviceChannel implements Device, Channel {
         } else {
             step = stepNoise;
         }
-        for (int offset = 0; offset < length; offset += 2) {
+        boolean audibleTone = false;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            audible[channel] = 0 != volume[channel];
+            if (audible[channel]) {
+                audibleTone = true;
+            }
+        }
+        audibleNoise = 0 != volumeNoise;
+        int samples = (length + 1) >> 1;
+        int offset = 0;
+        while (offset < samples) {
+            // Tones are constant until the sample at the next tone edge.
+            int quiet = samplesToToneEdge(samples - offset) - 1;
+            if (quiet > 0) {
+                short high = mixSN(true);
+                short low = mixSN(false);
+                int end = offset + quiet;
+                if (!audibleNoise) {
+                    Arrays.fill(buffer, offset, end,
+                            noise() ? high : low);
+                    countNoise = skipCountSN(countNoise, step, quiet);
+                    skipSeed(skipEvents);
+                    offset = end;
+                } else {
+                    while (offset < end) {
+                        int run = samplesToEvent(countNoise, step,
+                                end - offset);
+                        if (run > 1) {
+                            Arrays.fill(buffer, offset, offset + run - 1,
+                                    noise() ? high : low);
+                            offset += run - 1;
+                            countNoise += (run - 1) * baseStep;
+                        }
+                        countNoise += baseStep;
+                        if (countNoise > step) {
+                            updateSeed();
+                        }
+                        buffer[offset++] = noise() ? high : low;
+                    }
+                }
+                skipTone(quiet);
+            }
+            stepTone();
+            countNoise += baseStep;
+            if (countNoise > step) {
+                updateSeed();
+            }
+            buffer[offset++] = mixSN(noise());
+        }
+        if (audibleTone || audibleNoise) {
+            silentSamples = 0;
+        } else {
+            silentSamples = samples;
+        }
+    }
+
+    /**
+     * Update envelope step from the envelope period registers.
+     * The envelope counter runs at 1 / (1 << ENVELOPE_STEP_SCALE) of the
+     * tone counter resolution so that the 16-bit period, and the counter
+     * one sample past it, fit in an int.
+     * An AY-3-8910 step is as long as a full tone period of the same
+     * period value, and a YM-2149 step is half of it.
+     * Envelope steps faster than the sample rate are limited to one step
+     * per sample, as noise steps are.
+     */
+    private void updateEnvelopeStep() {
+        int period = (register[REGISTER_AY_EP_HIGH] << BITS_PER_BYTE)
+                | register[REGISTER_AY_EP_LOW];
+        baseStepEnvelope = baseStep >> ENVELOPE_STEP_SCALE;
+        if (ENVELOPE_STRIDE_YM == envelopeStride) {
+            stepEnvelope = period << (STEP_BIAS - ENVELOPE_STEP_SCALE);
+        } else {
+            stepEnvelope = period << (STEP_BIAS + 1 - ENVELOPE_STEP_SCALE);
+        }
+        if (stepEnvelope < baseStepEnvelope) {
+            stepEnvelope = baseStepEnvelope;
+        }
+    }
+
+    /**
+     * Move envelope position and update envelope volume of channels
+     * using the envelope.
+     * @param steps steps to move
+     */
+    private void moveEnvelope(final int steps) {
+        int position = envelopePosition + steps * envelopeStride;
+        if (position >= ENVELOPE_LENGTH) {
+            position = ENVELOPE_LOOP + (position - ENVELOPE_LOOP)
+                    % (ENVELOPE_LENGTH - ENVELOPE_LOOP);
+        }
+        envelopePosition = position;
+        short newVolume = (short) (volumeTable[envelopeShape[position]
+                                               & envelopeLevelMask]
+                                               << VOLUME_BIAS);
+        if (newVolume == envelopeVolume) {
+            return;
+        }
+        envelopeVolume = newVolume;
+        boolean used = false;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (envelope[channel]) {
+                volume[channel] = envelopeVolume;
+                used = true;
+            }
+        }
+        if (used) {
+            updateKernelAY();
+        }
+    }
+
+    /**
+     * Advance envelope by one sample.
+     */
+    private void stepEnvelope() {
+        countEnvelope += baseStepEnvelope;
+        if (countEnvelope > stepEnvelope) {
+            countEnvelope -= stepEnvelope;
+            moveEnvelope(1);
+        }
+    }
+
+    /**
+     * Advance envelope by specified samples in closed form.
+     * @param samples samples to advance
+     */
+    private void skipEnvelope(final int samples) {
+        countEnvelope = skipCount(countEnvelope, stepEnvelope,
+                baseStepEnvelope, samples);
+        if (0 != skipEvents) {
+            moveEnvelope(skipEvents);
+        }
+    }
+
+    /**
+     * Count samples until the next audible tone or envelope edge of
+     * AY-3-8910 or YM-2149.
+     * @param limit maximum samples to count
+     * @return samples until the edge inclusive, or limit
+     */
+    private int samplesToEdgeAY(final int limit) {
+        int run = samplesToToneEdge(limit);
+        if (audibleEnvelope) {
+            run = samplesToEvent(countEnvelope, stepEnvelope,
+                    baseStepEnvelope, run);
+        }
+        return run;
+    }
+
+    /**
+     * Advance AY-3-8910 or YM-2149 noise counter and seed by specified
+     * samples.
+     * @param samples samples to advance
+     */
+    private void skipNoiseAY(final int samples) {
+        countNoise = skipCount(countNoise, stepNoise, samples);
+        skipSeed(skipEvents);
+    }
+
+    /**
+     * Generate sound stream of AY-3-8910 or YM-2149 whose channels are all
+     * muted. The output is silent, so that only the counters are advanced
+     * in closed form, and the buffer is not touched if it is already
+     * silent.
+     * @param samples samples to generate
+     */
+    private void generateAYMuted(final int samples) {
+        if (silentSamples < samples) {
+            Arrays.fill(buffer, silentSamples, samples, (short) 0);
+            silentSamples = samples;
+        }
+        skipTone(samples);
+        skipNoiseAY(samples);
+        skipEnvelope(samples);
+    }
+
+    /**
+     * Generate sound stream of AY-3-8910 or YM-2149 without audible noise.
+     * @param samples samples to generate
+     */
+    private void generateAYTone(final int samples) {
+        skipNoiseAY(samples);
+        if (!audibleEnvelope) {
+            skipEnvelope(samples);
+            if ((null != toneKernel) && isDenseTone()) {
+                generateAYToneDense(samples);
+                return;
+            }
+        }
+        short value = mixAY(false);
+        int offset = 0;
+        while (offset < samples) {
+            int quiet = samplesToEdgeAY(samples - offset) - 1;
+            if (quiet > 0) {
+                Arrays.fill(buffer, offset, offset + quiet, value);
+                offset += quiet;
+                skipTone(quiet);
+                if (audibleEnvelope) {
+                    countEnvelope += quiet * baseStepEnvelope;
+                }
+            }
+            stepTone();
+            if (audibleEnvelope) {
+                stepEnvelope();
+            }
+            value = mixAY(false);
+            buffer[offset++] = value;
+        }
+    }
+
+    /**
+     * Check if an audible tone has edges within every DENSE_EDGE_SAMPLES
+     * samples, so that stepping counters at every sample is cheaper than
+     * rendering spans.
+     * @return true if tone edges are dense
+     */
+    private boolean isDenseTone() {
+        long limit = (long) baseStep * DENSE_EDGE_SAMPLES;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (audible[channel] && (stepTone[channel] < limit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate sound stream of AY-3-8910 or YM-2149 without audible noise
+     * and envelope by the tone kernel, which steps every tone counter at
+     * every sample.
+     * @param samples samples to generate
+     */
+    private void generateAYToneDense(final int samples) {
+        int outputs = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (active[channel]) {
+                outputs |= 1 << channel;
+            }
+        }
+        for (int i = 0; i < toneTable.length; i++) {
             short value = 0;
             for (int channel = 0; channel < CHANNELS; channel++) {
-                countTone[channel] += baseStep;
-                if (countTone[channel] > stepTone[channel]) {
-                    countTone[channel] -= stepTone[channel];
-                    active[channel] = !active[channel];
+                int index = channel * LEVELS;
+                if (0 != (i & (1 << channel))) {
+                    index += LEVEL_TONE;
                 }
-                if (active[channel]) {
-                    value += volume[channel];
-                } else if (mode == MODE_SIGNED) {
-                    value -= volume[channel];
+                value += level[index];
+            }
+            toneTable[i] = value;
+        }
+        outputs = toneKernel.generate(buffer, 0, samples, countTone,
+                stepTone, baseStep, outputs, toneTable);
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            active[channel] = 0 != (outputs & (1 << channel));
+        }
+    }
+
+    /**
+     * Generate sound stream of AY-3-8910 or YM-2149 with audible noise.
+     * @param samples samples to generate
+     */
+    private void generateAYMixed(final int samples) {
+        if (!audibleEnvelope) {
+            skipEnvelope(samples);
+        }
+        int offset = 0;
+        while (offset < samples) {
+            // Tones are constant until the sample at the next tone edge.
+            int quiet = samplesToEdgeAY(samples - offset) - 1;
+            if (quiet > 0) {
+                short high = mixAY(true);
+                short low = mixAY(false);
+                int end = offset + quiet;
+                while (offset < end) {
+                    int run = samplesToEvent(countNoise, stepNoise,
+                            end - offset);
+                    if (run > 1) {
+                        Arrays.fill(buffer, offset, offset + run - 1,
+                                noise() ? high : low);
+                        offset += run - 1;
+                        countNoise += (run - 1) * baseStep;
+                    }
+                    countNoise += baseStep;
+                    if (countNoise > stepNoise) {
+                        updateSeed();
+                        countNoise -= stepNoise;
+                    }
+                    buffer[offset++] = noise() ? high : low;
+                }
+                skipTone(quiet);
+                if (audibleEnvelope) {
+                    countEnvelope += quiet * baseStepEnvelope;
                 }
             }
             countNoise += baseStep;
-            if (countNoise > step) {
-                if (feedback) {
-                    short v = (short) (seed & UPDATE_SEED_MASK);
-                    v ^= (v >>> UPDATE_SEED_RSHIFT);
-                    seed = (short) (((int) seed & SHORT_MASK) >> 1);
-                    seed |= ((v << UPDATE_SEED_LSHIFT) & SHORT_MASK);
-                } else {
-                    seed = (short) (((int) seed & SHORT_MASK) >> 1);
-                    seed |= ((seed << UPDATE_SEED_LSHIFT) & SHORT_MASK);
-                }
+            if (countNoise > stepNoise) {
+                updateSeed();
+                countNoise -= stepNoise;
             }
-            if (0 != (seed & 1)) {
-                value += volumeNoise;
-            } else if (mode == MODE_SIGNED) {
-                value -= volumeNoise;
+            stepTone();
+            if (audibleEnvelope) {
+                stepEnvelope();
             }
-            buffer[offset + 0] = value;
-            buffer[offset + 1] = value;
+            buffer[offset++] = mixAY(noise());
         }
     }
 
@@ -328,35 +1465,247 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param length sound length in short to generate
      */
     private void generateAY(final int length) {
-        for (int offset = 0; offset < length; offset += 2) {
-            countNoise += baseStep;
-            if (countNoise > stepNoise) {
-                short v = (short) (seed & UPDATE_SEED_MASK);
-                v ^= (v >>> UPDATE_SEED_RSHIFT);
-                seed = (short) (((int) seed & SHORT_MASK) >> 1);
-                seed |= ((v << UPDATE_SEED_LSHIFT) & SHORT_MASK);
-                countNoise -= stepNoise;
+        int samples = (length + 1) >> 1;
+        switch (kernel) {
+        case KERNEL_MUTED:
+            generateAYMuted(samples);
+            return;
+        case KERNEL_TONE:
+            generateAYTone(samples);
+            break;
+        default:
+            generateAYMixed(samples);
+            break;
+        }
+        silentSamples = 0;
+    }
+
+    /**
+     * Fill outputs of every voice and the mixed output with the current
+     * state.
+     * @param offset offset to fill
+     * @param samples samples to fill
+     * @param noise noise output
+     */
+    private void fillVoices(final int offset, final int samples,
+            final boolean noise) {
+        int end = offset + samples;
+        short mixed = 0;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            short value;
+            if (device == DEVICE_SN76489) {
+                if (active[channel]) {
+                    value = volume[channel];
+                } else if (mode == MODE_SIGNED) {
+                    value = (short) -volume[channel];
+                } else {
+                    value = 0;
+                }
+            } else {
+                int index = channel * LEVELS;
+                if (active[channel]) {
+                    index += LEVEL_TONE;
+                }
+                if (noise) {
+                    index += LEVEL_NOISE;
+                }
+                value = (short) level[index];
+            }
+            Arrays.fill(voiceBuffers[channel], offset, end, value);
+            mixed += value;
+        }
+        short value = 0;
+        if (device == DEVICE_SN76489) {
+            if (noise) {
+                value = (short) volumeNoise;
+            } else if (mode == MODE_SIGNED) {
+                value = (short) -volumeNoise;
+            }
+        }
+        Arrays.fill(voiceBuffers[VOICE_NOISE], offset, end, value);
+        mixed += value;
+        Arrays.fill(buffer, offset, end, mixed);
+    }
+
+    /**
+     * Mix current outputs.
+     * @return mixed value
+     */
+    private short mix() {
+        if (device == DEVICE_SN76489) {
+            return mixSN(noise());
+        }
+        return mixAY(noise());
+    }
+
+    /**
+     * Fill a span of outputs with the current state.
+     * @param offset offset to fill
+     * @param samples samples to fill
+     */
+    private void fillSpan(final int offset, final int samples) {
+        if (null != voiceBuffers) {
+            fillVoices(offset, samples, noise());
+        } else {
+            Arrays.fill(buffer, offset, offset + samples, mix());
+        }
+    }
+
+    /**
+     * Add a band-limited step for a change of the mixed output at a
+     * sample.
+     * @param offset sample where the change appears
+     * @param last mixed value before the change
+     * @param overshoot counter value past the step at the sample
+     * @param base value to advance the counter at every sample
+     * @return mixed value after the change
+     */
+    private int addStep(final int offset, final int last,
+            final int overshoot, final int base) {
+        int current = mix();
+        int delta = current - last;
+        if (0 == delta) {
+            return current;
+        }
+        long phase = ((long) overshoot * BlepTable.PHASES + (base >> 1))
+                / base;
+        if (phase < 0) {
+            phase = 0;
+        } else if (phase >= BlepTable.PHASES) {
+            phase = BlepTable.PHASES - 1;
+        }
+        int index = (int) phase * BlepTable.TAPS;
+        for (int tap = 0; tap < BlepTable.TAPS; tap++) {
+            blepResidual[offset + tap] +=
+                (delta * blepTable[index + tap]) >> BlepTable.BITS;
+        }
+        return current;
+    }
+
+    /**
+     * Add band-limited step residuals to the mixed output, and carry
+     * residuals beyond the samples over to the next call.
+     * @param samples samples generated
+     */
+    private void applyResidual(final int samples) {
+        for (int i = 0; i < samples; i++) {
+            int value = buffer[i] + blepResidual[i];
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            buffer[i] = (short) value;
+        }
+        System.arraycopy(blepResidual, samples, blepResidual, 0,
+                BlepTable.TAPS);
+        Arrays.fill(blepResidual, BlepTable.TAPS,
+                samples + BlepTable.TAPS, 0);
+    }
+
+    /**
+     * Generate sound stream by spans which run to the next audible edge
+     * of any voice. This kernel writes per voice outputs, and adds
+     * band-limited steps, if enabled. Otherwise, the mixed output is
+     * identical to generateSN() and generateAY().
+     * @param samples samples to generate
+     */
+    private void generateSpans(final int samples) {
+        boolean sn = device == DEVICE_SN76489;
+        boolean bandLimited = null != blepResidual;
+        int step = stepNoise;
+        if (sn) {
+            if (0 == stepNoise) {
+                step = stepTone[CH_C];
             }
-            short value = 0;
-            boolean noise = 0 != (seed & 1);
             for (int channel = 0; channel < CHANNELS; channel++) {
-                countTone[channel] += baseStep;
-                if (countTone[channel] > stepTone[channel]) {
-                    countTone[channel] -= stepTone[channel];
-                    active[channel] = !active[channel];
+                audible[channel] = 0 != volume[channel];
+            }
+            audibleNoise = 0 != volumeNoise;
+            audibleEnvelope = false;
+        }
+        if (bandLimited) {
+            // Register writes change the output at the first sample.
+            blepLevel = addStep(0, blepLevel, 0, baseStep);
+        }
+        if (!audibleNoise) {
+            if (sn) {
+                countNoise = skipCountSN(countNoise, step, samples);
+                skipSeed(skipEvents);
+            } else {
+                skipNoiseAY(samples);
+            }
+        }
+        if (!sn && !audibleEnvelope) {
+            skipEnvelope(samples);
+        }
+        int offset = 0;
+        while (offset < samples) {
+            int run = samplesToEdgeAY(samples - offset);
+            if (audibleNoise) {
+                run = samplesToEvent(countNoise, step, run);
+            }
+            int quiet = run - 1;
+            if (quiet > 0) {
+                fillSpan(offset, quiet);
+                offset += quiet;
+                skipTone(quiet);
+                if (audibleNoise) {
+                    countNoise += quiet * baseStep;
+                }
+                if (audibleEnvelope) {
+                    countEnvelope += quiet * baseStepEnvelope;
+                }
+            }
+            if (audibleNoise) {
+                countNoise += baseStep;
+                if (countNoise > step) {
+                    updateSeed();
+                    if (!sn) {
+                        countNoise -= step;
+                    }
+                    if (bandLimited) {
+                        int overshoot = countNoise;
+                        if (sn) {
+                            overshoot -= step;
+                        }
+                        blepLevel = addStep(offset, blepLevel, overshoot,
+                                baseStep);
+                    }
                 }
-                if ((mixerTone[channel] && active[channel])
-                        || (mixerNoise[channel] && noise)) {
-                    value += volume[channel];
-                } else if (mixerTone[channel]
-                                     && mixerNoise[channel]
-                                                   && mode == MODE_SIGNED) {
-                    value -= volume[channel];
+            }
+            if (!bandLimited) {
+                stepTone();
+            } else {
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    countTone[channel] += baseStep;
+                    if (countTone[channel] > stepTone[channel]) {
+                        countTone[channel] -= stepTone[channel];
+                        active[channel] = !active[channel];
+                        blepLevel = addStep(offset, blepLevel,
+                                countTone[channel], baseStep);
+                    }
+                }
+            }
+            if (audibleEnvelope) {
+                if (!bandLimited) {
+                    stepEnvelope();
+                } else {
+                    countEnvelope += baseStepEnvelope;
+                    if (countEnvelope > stepEnvelope) {
+                        countEnvelope -= stepEnvelope;
+                        moveEnvelope(1);
+                        blepLevel = addStep(offset, blepLevel,
+                                countEnvelope, baseStepEnvelope);
+                    }
                 }
             }
-            buffer[offset + 0] = value;
-            buffer[offset + 1] = value;
+            fillSpan(offset++, 1);
         }
+        if (bandLimited) {
+            applyResidual(samples);
+        }
+        silentSamples = 0;
     }
 
     /**
@@ -365,13 +1714,67 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param length sound length in short to generate
      */
     public void generate(final int length) {
-        if (device == DEVICE_SN76489) {
+        if ((null != voiceBuffers) || (null != blepResidual)) {
+            generateSpans((length + 1) >> 1);
+        } else if (device == DEVICE_SN76489) {
             generateSN(length);
         } else {
             generateAY(length);
         }
     }
 
+    /**
+     * Store a value byte to SN76489 registers.
+     * @param data value byte
+     * @return pseudo address of the written register
+     */
+    private int latchSN(final int data) {
+        int pseudoAddress = 0;
+        if (0 != (data & BYTE_MSB_MASK)) {
+            // lower values is stored to register[address + 8]
+            pseudoAddress = data >> HALF_SHIFT;
+            register[pseudoAddress] = data & HALF_MASK;
+            // set next accessed register to address
+            activeRegister = pseudoAddress & ADDRESS_MASK;
+        } else {
+            pseudoAddress = activeRegister;
+            register[pseudoAddress] = data & VALUE_MASK;
+        }
+        return pseudoAddress;
+    }
+
+    /**
+     * Update tone step of a SN76489 channel from registers.
+     * @param channel channel to update
+     */
+    private void updateToneSN(final int channel) {
+        stepTone[channel] = ((register[channel << 1] << HALF_SHIFT)
+                | register[SN_TP_LOW_BASE + (channel << 1)]) << STEP_BIAS;
+    }
+
+    /**
+     * Update volume of a SN76489 channel from registers.
+     * @param channel channel to update
+     */
+    private void updateVolumeSN(final int channel) {
+        volume[channel] = (short) (volumeTable[register[SN_TP_LOW_BASE
+                                   + (channel << 1) + 1]] << VOLUME_BIAS);
+    }
+
+    /**
+     * Update SN76489 noise control.
+     * @param data value byte written to the noise control register
+     */
+    private void updateNoiseSN(final int data) {
+        stepNoise = NOISE_TP_TABLE[data & LOWER_TWO_BITS_MASK] << STEP_BIAS;
+        if (feedback != (1 == (data >> 2))) {
+            // The LFSR state is kept over noise mode changes.
+            int state = noiseTable.getState(noisePosition);
+            feedback = !feedback;
+            setNoiseState(state);
+        }
+    }
+
     /**
      * Write to SN76489 registers.
      * If MSB of value byte is high, from bit six to four represent
@@ -388,51 +1791,20 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param value address and value to write
      */
     public void writeRegisterSN(final int address, final int value) {
-        int pseudoAddress = 0;
-        if (0 != (value & BYTE_MSB_MASK)) {
-            // lower values is stored to register[address + 8]
-            pseudoAddress = value >> HALF_SHIFT;
-            register[pseudoAddress] = value & HALF_MASK;
-            // set next accessed register to address
-            activeRegister = pseudoAddress & ADDRESS_MASK;
-        } else {
-            pseudoAddress = activeRegister;
-            register[pseudoAddress] = value & VALUE_MASK;
-        }
-        switch (pseudoAddress) {
-        case REGISTER_SN_CH_A_TP:
-        case REGISTER_SN_CH_A_TP_HIGH:
-            stepTone[CH_A] = ((register[REGISTER_SN_CH_A_TP_HIGH] << HALF_SHIFT)
-                    | register[REGISTER_SN_CH_A_TP]) << STEP_BIAS;
-            break;
-        case REGISTER_SN_CH_A_VOLUME:
-            volume[CH_A] = (short) (volumeTable[register[pseudoAddress]]
-                                                << VOLUME_BIAS);
-            break;
-        case REGISTER_SN_CH_B_TP:
-        case REGISTER_SN_CH_B_TP_HIGH:
-            stepTone[CH_B] = ((register[REGISTER_SN_CH_B_TP_HIGH] << HALF_SHIFT)
-                    | register[REGISTER_SN_CH_B_TP]) << STEP_BIAS;
-            break;
-        case REGISTER_SN_CH_B_VOLUME:
-            volume[CH_B] = (short) (volumeTable[register[pseudoAddress]]
-                                                << VOLUME_BIAS);
+        int data = value & REGISTER_VALUE_MASK;
+        int pseudoAddress = latchSN(data);
+        int channel = SN_CHANNEL[pseudoAddress];
+        switch (SN_EFFECT[pseudoAddress]) {
+        case EFFECT_TONE:
+            updateToneSN(channel);
             break;
-        case REGISTER_SN_CH_C_TP:
-        case REGISTER_SN_CH_C_TP_HIGH:
-            stepTone[CH_C] = ((register[REGISTER_SN_CH_C_TP_HIGH] << HALF_SHIFT)
-                    | register[REGISTER_SN_CH_C_TP]) << STEP_BIAS;
+        case EFFECT_VOLUME:
+            updateVolumeSN(channel);
             break;
-        case REGISTER_SN_CH_C_VOLUME:
-            volume[CH_C] = (short) (volumeTable[register[pseudoAddress]]
-                                                << VOLUME_BIAS);
+        case EFFECT_NOISE:
+            updateNoiseSN(data);
             break;
-        case REGISTER_SN_NOISE_CONTROL:
-            stepNoise = NOISE_TP_TABLE[value & LOWER_TWO_BITS_MASK]
-                                       << STEP_BIAS;
-            feedback = 1 == (value >> 2);
-            break;
-        case REGISTER_SN_NOISE_VOLUME:
+        case EFFECT_NOISE_VOLUME:
             volumeNoise = volumeTable[register[pseudoAddress]];
             break;
         default:
@@ -440,6 +1812,119 @@ public final class PsgDeviceChannel implements Device, Channel {
         }
     }
 
+    /**
+     * Write to SN76489 registers at once.
+     * @see writeRegisters
+     * @param addresses not used
+     * @param values addresses and values to write
+     * @param count the number of values to write
+     */
+    public void writeRegistersSN(final int[] addresses, final int[] values,
+            final int count) {
+        int tones = 0;
+        int volumes = 0;
+        int noise = -1;
+        boolean noiseVolume = false;
+        for (int i = 0; i < count; i++) {
+            int data = values[i] & REGISTER_VALUE_MASK;
+            int pseudoAddress = latchSN(data);
+            int channel = SN_CHANNEL[pseudoAddress];
+            switch (SN_EFFECT[pseudoAddress]) {
+            case EFFECT_TONE:
+                tones |= 1 << channel;
+                break;
+            case EFFECT_VOLUME:
+                volumes |= 1 << channel;
+                break;
+            case EFFECT_NOISE:
+                noise = data;
+                break;
+            case EFFECT_NOISE_VOLUME:
+                noiseVolume = true;
+                break;
+            default:
+                break;
+            }
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (0 != (tones & (1 << channel))) {
+                updateToneSN(channel);
+            }
+            if (0 != (volumes & (1 << channel))) {
+                updateVolumeSN(channel);
+            }
+        }
+        if (noise >= 0) {
+            updateNoiseSN(noise);
+        }
+        if (noiseVolume) {
+            volumeNoise =
+                volumeTable[register[REGISTER_SN_NOISE_VOLUME]];
+        }
+    }
+
+    /**
+     * Update tone step of an AY-3-8910 or YM-2149 channel from registers.
+     * @param channel channel to update
+     */
+    private void updateToneAY(final int channel) {
+        stepTone[channel] = ((register[(channel << 1) + 1] << BITS_PER_BYTE)
+                | register[channel << 1]) << STEP_BIAS;
+    }
+
+    /**
+     * Update AY-3-8910 or YM-2149 noise step from the register.
+     */
+    private void updateNoiseAY() {
+        stepNoise = ((register[REGISTER_AY_NOISE_TP] & NOISE_TP_MASK) << 1)
+                << (STEP_BIAS + 1);
+        if (stepNoise < baseStep) {
+            stepNoise = baseStep;
+        }
+    }
+
+    /**
+     * Update AY-3-8910 or YM-2149 mixer from the register.
+     * updateKernelAY() must follow.
+     */
+    private void updateMixerAY() {
+        int data = register[REGISTER_AY_MIXER];
+        mixerTone[CH_A] = 0 == (data & MIXER_CH_A_TONE);
+        mixerTone[CH_B] = 0 == (data & MIXER_CH_B_TONE);
+        mixerTone[CH_C] = 0 == (data & MIXER_CH_C_TONE);
+        mixerNoise[CH_A] = 0 == (data & MIXER_CH_A_NOISE);
+        mixerNoise[CH_B] = 0 == (data & MIXER_CH_B_NOISE);
+        mixerNoise[CH_C] = 0 == (data & MIXER_CH_C_NOISE);
+    }
+
+    /**
+     * Update volume of an AY-3-8910 or YM-2149 channel from the register.
+     * Output levels must be updated after this.
+     * @param channel channel to update
+     */
+    private void updateVolumeAY(final int channel) {
+        int data = register[REGISTER_AY_CH_A_VOLUME + channel];
+        envelope[channel] = 0 != (data & ENVELOPE_MASK);
+        if (envelope[channel]) {
+            volume[channel] = envelopeVolume;
+        } else {
+            volume[channel] = (short) (volumeTable[(data & VOLUME_MASK)
+                                                   << 1] << VOLUME_BIAS);
+        }
+    }
+
+    /**
+     * Restart the envelope with the shape in the register.
+     */
+    private void restartEnvelope() {
+        envelopeShape = ENVELOPE_TABLE[register[REGISTER_AY_EP_CONTROL]
+                                       & ENVELOPE_SHAPE_MASK];
+        envelopePosition = 0;
+        countEnvelope = 0;
+        envelopeVolume = -1;
+        moveEnvelope(0);
+    }
+
     /**
      * Write to AY-3-8910 or YM-2149 registers.
      * @see writeRegister
@@ -447,94 +1932,98 @@ public final class PsgDeviceChannel implements Device, Channel {
      * @param value register value to write
      */
     public void writeRegisterAY(final int address, final int value) {
-        if ((address > REGISTERS)
-                || (value < REGISTER_MIN_VALUE)
-                || (REGISTER_MAX_VALUE < value)) {
-            throw new IllegalArgumentException("Undefined register: "
-                    + address);
-        }
-        register[address] = value;
+        int index = address & REGISTER_ADDRESS_MASK;
+        register[index] = value & REGISTER_VALUE_MASK;
 
-        switch(address) {
-        case REGISTER_AY_CH_A_TP_LOW:
-        case REGISTER_AY_CH_A_TP_HIGH:
-            stepTone[CH_A] = ((register[REGISTER_AY_CH_A_TP_HIGH]
-                                        << BITS_PER_BYTE)
-                                        | (register[REGISTER_AY_CH_A_TP_LOW]))
-                                        << STEP_BIAS;
+        int channel = AY_CHANNEL[index];
+        switch (AY_EFFECT[index]) {
+        case EFFECT_TONE:
+            updateToneAY(channel);
             break;
-        case REGISTER_AY_CH_B_TP_LOW:
-        case REGISTER_AY_CH_B_TP_HIGH:
-            stepTone[CH_B] = ((register[REGISTER_AY_CH_B_TP_HIGH]
-                                        << BITS_PER_BYTE)
-                                        | (register[REGISTER_AY_CH_B_TP_LOW]))
-                                        << STEP_BIAS;
+        case EFFECT_NOISE:
+            updateNoiseAY();
             break;
-        case REGISTER_AY_CH_C_TP_LOW:
-        case REGISTER_AY_CH_C_TP_HIGH:
-            stepTone[CH_C] = ((register[REGISTER_AY_CH_C_TP_HIGH]
-                                        << BITS_PER_BYTE)
-                                        | (register[REGISTER_AY_CH_C_TP_LOW]))
-                                        << STEP_BIAS;
+        case EFFECT_MIXER:
+            updateMixerAY();
+            updateKernelAY();
             break;
-        case REGISTER_AY_NOISE_TP:
-            stepNoise = ((value & NOISE_TP_MASK) << 1) << (STEP_BIAS + 1);
-            if (stepNoise < baseStep) {
-                stepNoise = baseStep;
-            }
-            break;
-        case REGISTER_AY_MIXER:
-            mixerTone[CH_A] = 0 == (value & MIXER_CH_A_TONE);
-            mixerTone[CH_B] = 0 == (value & MIXER_CH_B_TONE);
-            mixerTone[CH_C] = 0 == (value & MIXER_CH_C_TONE);
-            mixerNoise[CH_A] = 0 == (value & MIXER_CH_A_NOISE);
-            mixerNoise[CH_B] = 0 == (value & MIXER_CH_B_NOISE);
-            mixerNoise[CH_C] = 0 == (value & MIXER_CH_C_NOISE);
-            break;
-        case REGISTER_AY_CH_A_VOLUME:
-            volume[CH_A] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_A] = 0 != (value & ENVELOPE_MASK);
-            break;
-        case REGISTER_AY_CH_B_VOLUME:
-            volume[CH_B] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_B] = 0 != (value & ENVELOPE_MASK);
-            break;
-        case REGISTER_AY_CH_C_VOLUME:
-            volume[CH_C] = (short) (volumeTable[(value & VOLUME_MASK) << 1]
-                                                 << VOLUME_BIAS);
-            envelope[CH_C] = 0 != (value & ENVELOPE_MASK);
-            break;
-        case REGISTER_AY_EP_LOW:
-            // TODO
-            break;
-        case REGISTER_AY_EP_HIGH:
-            // TODO
-            break;
-        case REGISTER_AY_EP_CONTROL:
-            // TODO
+        case EFFECT_VOLUME:
+            updateVolumeAY(channel);
+            updateLevelAY(channel);
+            selectKernelAY();
             break;
-        case REGISTER_AY_IO_A:
+        case EFFECT_ENVELOPE_PERIOD:
+            updateEnvelopeStep();
             break;
-        case REGISTER_AY_IO_B:
+        case EFFECT_ENVELOPE_SHAPE:
+            // writing the shape restarts the envelope
+            restartEnvelope();
             break;
         default:
             break;
         }
     }
 
+    /**
+     * Write to AY-3-8910 or YM-2149 registers at once. All values are
+     * stored first, and then each affected state is updated once.
+     * Envelope restarts are merged into one, since no time passes.
+     * @see writeRegisters
+     * @param addresses register addresses to write
+     * @param values register values to write
+     * @param count the number of registers to write
+     */
+    public void writeRegistersAY(final int[] addresses, final int[] values,
+            final int count) {
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            int index = addresses[i] & REGISTER_ADDRESS_MASK;
+            register[index] = values[i] & REGISTER_VALUE_MASK;
+            written |= 1 << index;
+        }
+        if (0 != (written & (1 << REGISTER_AY_EP_CONTROL))) {
+            restartEnvelope();
+        }
+        if (0 != (written & AY_ENVELOPE_PERIOD_BITS)) {
+            updateEnvelopeStep();
+        }
+        if (0 != (written & (1 << REGISTER_AY_NOISE_TP))) {
+            updateNoiseAY();
+        }
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (0 != (written & (AY_TONE_BITS << (channel << 1)))) {
+                updateToneAY(channel);
+            }
+            if (0 != (written & (1 << (REGISTER_AY_CH_A_VOLUME + channel)))) {
+                updateVolumeAY(channel);
+            }
+        }
+        if (0 != (written & (1 << REGISTER_AY_MIXER))) {
+            updateMixerAY();
+        }
+        if (0 != (written & AY_LEVEL_BITS)) {
+            updateKernelAY();
+        }
+    }
+
     /**
      * @see Device
      * @param address register address to write
      * @param value register value to write
      */
     public void writeRegister(final int address, final int value) {
-        if (device == DEVICE_SN76489) {
-            writeRegisterSN(address, value);
-        } else {
-            writeRegisterAY(address, value);
-        }
+        port.writeRegister(address, value);
+    }
+
+    /**
+     * @see Device
+     * @param addresses register addresses to write
+     * @param values register values to write
+     * @param count the number of registers to write
+     */
+    public void writeRegisters(final int[] addresses, final int[] values,
+            final int count) {
+        port.writeRegisters(addresses, values, count);
     }
 
     /**
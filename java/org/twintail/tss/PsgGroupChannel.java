@@ -0,0 +1,232 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+import java.util.Arrays;
+
+/**
+ * class PsgGroupChannel
+ *
+ * This class implements a group of PSG devices sharing one Channel, e.g.,
+ * two SN76489 on a dual chip VGM, or AY-3-8910 chips on an arcade board.
+ * Each chip is a PsgDeviceChannel written through its own Device view, and
+ * renders into its own buffer. The group then copies the buffer of the only
+ * audible chip, or sums and clips buffers of audible chips, into one mono
+ * buffer, so that the master channel sees one slave instead of N.
+ * The buffer is not replaced on generation, since mixers may hold it.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+public final class PsgGroupChannel implements Channel {
+    private static final int MAX_WAVE_VALUE = 32767;
+    private static final int MIN_WAVE_VALUE = -32767;
+    private PsgDeviceChannel[] chips = new PsgDeviceChannel[0];
+    private short[][] audible = new short[0][];
+    private short[] buffer = null;
+    private boolean silent = false;
+    private int bufferLength = 0;
+    private int sampleRate = MasterChannel.SAMPLE_FREQUENCY;
+    private int clock = PsgDeviceChannel.CLOCK_3_58MHZ;
+    private int mode = PsgDeviceChannel.MODE_UNSIGNED;
+    private int device = PsgDeviceChannel.DEVICE_AY_3_8910;
+
+    /**
+     * Class constructor.
+     * @param count the number of chips
+     */
+    public PsgGroupChannel(final int count) {
+        setChips(count);
+    }
+
+    /**
+     * Set the number of chips. All chips are reset to the current clock,
+     * mode and device settings.
+     * @param count the number of chips
+     */
+    public void setChips(final int count) {
+        chips = new PsgDeviceChannel[count];
+        audible = new short[count][];
+        for (int i = 0; i < count; i++) {
+            PsgDeviceChannel chip = new PsgDeviceChannel();
+            chip.setSampleRate(sampleRate);
+            chip.setClock(clock);
+            chip.setMode(mode);
+            chip.setDevice(device);
+            if (0 != bufferLength) {
+                chip.setBufferLength(bufferLength);
+            }
+            chips[i] = chip;
+        }
+    }
+
+    /**
+     * Get the number of chips.
+     * @return the number of chips
+     */
+    public int getChips() {
+        return chips.length;
+    }
+
+    /**
+     * Get a chip to write registers.
+     * @param index chip index
+     * @return Device view of the chip
+     */
+    public Device getDevice(final int index) {
+        return chips[index];
+    }
+
+    /**
+     * Get the size of the state saved by saveState().
+     * @return state size in ints
+     */
+    public int getStateSize() {
+        return chips.length * PsgDeviceChannel.STATE_SIZE;
+    }
+
+    /**
+     * Save states of all chips.
+     * @see PsgDeviceChannel
+     * @param state array to save the state in getStateSize() ints
+     * @param offset offset in the array to save the state
+     * @return offset next to the saved state
+     */
+    public int saveState(final int[] state, final int offset) {
+        int i = offset;
+        for (int chip = 0; chip < chips.length; chip++) {
+            i = chips[chip].saveState(state, i);
+        }
+        return i;
+    }
+
+    /**
+     * Restore states of all chips saved by saveState(). The group must have
+     * the same number of chips as on saving.
+     * @see PsgDeviceChannel
+     * @param state array holding the state
+     * @param offset offset in the array of the state
+     * @return offset next to the restored state
+     */
+    public int restoreState(final int[] state, final int offset) {
+        int i = offset;
+        for (int chip = 0; chip < chips.length; chip++) {
+            i = chips[chip].restoreState(state, i);
+        }
+        return i;
+    }
+
+    /**
+     * Set device clock frequency of all chips in Hz.
+     * @param hz clock frequency in Hz
+     */
+    public void setClock(final int hz) {
+        clock = hz;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].setClock(hz);
+        }
+    }
+
+    /**
+     * Set wave form mode of all chips.
+     * @see PsgDeviceChannel
+     * @param newMode generate signed or unsigned wave
+     */
+    public void setMode(final int newMode) {
+        mode = newMode;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].setMode(newMode);
+        }
+    }
+
+    /**
+     * Set emulated device target of all chips.
+     * @param target target device
+     */
+    public void setDevice(final int target) {
+        device = target;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].setDevice(target);
+        }
+    }
+
+    /**
+     * @see Channel
+     * @return LAYOUT_MONO
+     */
+    public int getLayout() {
+        return LAYOUT_MONO;
+    }
+
+    /**
+     * @see Channel
+     * @param length buffer length or size in shorts
+     */
+    public void setBufferLength(final int length) {
+        bufferLength = length;
+        buffer = new short[(length + 1) >> 1];
+        silent = false;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].setBufferLength(length);
+        }
+    }
+
+    /**
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].setSampleRate(rate);
+        }
+    }
+
+    /**
+     * @see Channel
+     * @return audio stream buffer
+     */
+    public short[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Generate specified length sound stream into internal buffer.
+     * @see Channel
+     * @param length sound length in short to generate
+     */
+    public void generate(final int length) {
+        int samples = (length + 1) >> 1;
+        int count = 0;
+        for (int i = 0; i < chips.length; i++) {
+            chips[i].generate(length);
+            if (!chips[i].isSilent()) {
+                audible[count++] = chips[i].getBuffer();
+            }
+        }
+        if (0 == count) {
+            // The buffer is reused while every chip keeps silent.
+            if (!silent) {
+                Arrays.fill(buffer, (short) 0);
+                silent = true;
+            }
+            return;
+        }
+        silent = false;
+        if (1 == count) {
+            System.arraycopy(audible[0], 0, buffer, 0, samples);
+            return;
+        }
+        for (int offset = 0; offset < samples; offset++) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value += audible[i][offset];
+            }
+            if (value > MAX_WAVE_VALUE) {
+                value = MAX_WAVE_VALUE;
+            } else if (value < MIN_WAVE_VALUE) {
+                value = MIN_WAVE_VALUE;
+            }
+            buffer[offset] = (short) value;
+        }
+    }
+}
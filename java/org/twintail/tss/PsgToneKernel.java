@@ -0,0 +1,33 @@
+/**
+ * T'SoundSystem for Java
+ */
+package org.twintail.tss;
+
+/**
+ * interface PsgToneKernel
+ *
+ * This interface provides an optional tone generator for PsgDeviceChannel.
+ * It steps all tone counters at every sample, and is used for blocks
+ * where tone edges are so dense that span rendering does not pay.
+ * Implementations must produce exactly the same counters, outputs and
+ * samples as the scalar path.
+ * @author Takashi Toyoshima <toyoshim@gmail.com>
+ */
+interface PsgToneKernel {
+    /**
+     * Advance tone counters sample by sample, and store the mixed output
+     * of each sample. Each counter is advanced by base, and subtracts its
+     * step and toggles its output when it exceeds the step.
+     * @param buffer buffer to store outputs
+     * @param offset offset to store the first output
+     * @param samples samples to generate
+     * @param count tone counters of three channels, updated in place
+     * @param step tone steps of three channels
+     * @param base value to advance counters at every sample
+     * @param outputs tone outputs, bit n for channel n
+     * @param table mixed output indexed by tone outputs
+     * @return tone outputs after the last sample
+     */
+    int generate(short[] buffer, int offset, int samples, int[] count,
+            int[] step, int base, int outputs, short[] table);
+}
@@ -18,10 +18,14 @@ public final class PsglogPlayer implements Player {
     private static final byte PKT_SYNC = -1;
     private static final int BYTE_MASK = 0xff;
     private static final int PLAYER_INTERVAL = 33;
+    private static final int MAX_WRITES = 32;
     private InputStream input = null;
     private PsgDeviceChannel psg = null;
     private Exception lastException = null;
     private int sync = 0;
+    private boolean finished = false;
+    private int[] addresses = new int[MAX_WRITES];
+    private int[] values = new int[MAX_WRITES];
 
     /**
      * Get last happened exception.
@@ -56,27 +60,53 @@ public final class PsglogPlayer implements Player {
             sync--;
             return;
         }
+        // Writes until the next sync happen at the same time, and are
+        // applied at once.
+        int count = 0;
         try {
             byte[] pkt = new byte[2];
             int readByte;
-            boolean finished = false;
+            boolean synced = false;
             do {
                 readByte = input.read(pkt, 0, 2);
                 if (2 == readByte) {
                     if (pkt[PKT_REGISTER] != PKT_SYNC) {
-                        psg.writeRegister(pkt[PKT_REGISTER],
-                                pkt[PKT_VALUE] & BYTE_MASK);
+                        if (MAX_WRITES == count) {
+                            psg.writeRegisters(addresses, values, count);
+                            count = 0;
+                        }
+                        addresses[count] = pkt[PKT_REGISTER];
+                        values[count] = pkt[PKT_VALUE] & BYTE_MASK;
+                        count++;
                     } else {
                         sync = pkt[PKT_VALUE] & BYTE_MASK;
-                        finished = true;
+                        synced = true;
                     }
                 } else {
                     finished = true;
                 }
-            } while (!finished);
+            } while (!synced && !finished);
         } catch (IOException e) {
             lastException = e;
+            finished = true;
         }
+        psg.writeRegisters(addresses, values, count);
+    }
+
+    /**
+     * @see Player
+     * @return loop count
+     */
+    public int getLoopCount() {
+        return 0;
+    }
+
+    /**
+     * @see Player
+     * @return true if nothing is left to play
+     */
+    public boolean isFinished() {
+        return finished;
     }
 
     /**
@@ -86,6 +116,7 @@ public final class PsglogPlayer implements Player {
      */
     public boolean play(final InputStream newInput) {
         input = newInput;
+        finished = false;
         return true;
     }
 }
@@ -12,6 +12,7 @@ package org.twintail.tss;
 public final class SimpleSlaveChannel implements Channel {
     private static final int DEFAULT_VOLUME = 1024;
     private short[] buffer = null;
+    private int sampleRate = MasterChannel.SAMPLE_FREQUENCY;
     private int freq = 0;
     private int phase = 0;
     private short data = DEFAULT_VOLUME;
@@ -24,12 +25,28 @@ public final class SimpleSlaveChannel implements Channel {
         freq = frequency;
     }
 
+    /**
+     * @see Channel
+     * @param rate sample rate in Hz
+     */
+    public void setSampleRate(final int rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * @see Channel
+     * @return LAYOUT_MONO
+     */
+    public int getLayout() {
+        return LAYOUT_MONO;
+    }
+
     /**
      * @see Channel
      * @param length buffer length or size in shorts
      */
     public void setBufferLength(final int length) {
-        buffer = new short[length];
+        buffer = new short[(length + 1) >> 1];
     }
 
     /**
@@ -46,14 +63,14 @@ public final class SimpleSlaveChannel implements Channel {
      * @param length sound length in short to generate
      */
     public void generate(final int length) {
-        for (int i = 0; i < length; i += 2) {
+        int samples = (length + 1) >> 1;
+        for (int i = 0; i < samples; i++) {
             phase += freq * 2;
-            if (phase > MasterChannel.SAMPLE_FREQUENCY) {
-                phase -= MasterChannel.SAMPLE_FREQUENCY;
+            if (phase > sampleRate) {
+                phase -= sampleRate;
                 data = (short) -data;
             }
-            buffer[i + 0] = data;
-            buffer[i + 1] = data;
+            buffer[i] = data;
         }
     }
 }
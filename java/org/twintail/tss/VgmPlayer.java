@@ -3,9 +3,14 @@
  */
 package org.twintail.tss;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 import org.twintail.Log;
 
@@ -13,6 +18,14 @@ import org.twintail.Log;
  * class VgmPlayer
  *
  * Play VGM format files.
+ * The whole file image is decoded from a ByteBuffer. Files opened as a
+ * FileInputStream are memory mapped, and VGZ files are inflated into a
+ * heap buffer. The command stream is compiled once into packed events,
+ * which are replayed without any allocation, and can be sought by the
+ * sample position.
+ * The player drives MasterChannel by timestamps. Each group of writes is
+ * applied at the exact sample its waits define, so the master renders
+ * straight through from one group to the next.
  * @see http://www.smspower.org/uploads/Music/vgmspec150.txt
  * @author Takashi Toyoshima <toyoshim@gmail.com>
  */
@@ -23,26 +36,34 @@ public final class VgmPlayer implements Player {
     private static final byte VGM_ID2 = (byte) 'g';
     private static final byte VGM_ID3 = (byte) 'm';
     private static final byte VGM_ID4 = (byte) ' ';
-    private static final int VGM_IDENT_SIZE = 4;
-    private static final int VGM_VERSION_SIZE = 4;
+    private static final int GZ_ID_SIZE = 2;
+    private static final int VGM_EOF_OFFSET = 0x04;
+    private static final int VGM_VERSION_OFFSET = 0x08;
+    private static final int VGM_SN_CLOCK_OFFSET = 0x0c;
+    private static final int VGM_YM2413_CLOCK_OFFSET = 0x10;
+    private static final int VGM_GD3_OFFSET = 0x14;
+    private static final int VGM_TOTAL_SAMPLES_OFFSET = 0x18;
+    private static final int VGM_LOOP_OFFSET = 0x1c;
+    private static final int VGM_LOOP_SAMPLES_OFFSET = 0x20;
     private static final int VERSION_1_00 = 0x00;
     private static final int VERSION_1_01 = 0x01;
     private static final int VERSION_1_10 = 0x10;
     private static final int VERSION_1_50 = 0x50;
-    private static final int UINT_SIZE = 4;
-    private static final long BYTE_MASK = 0xff;
+    private static final long UINT_MASK = 0xffffffffL;
+    private static final int BYTE_MASK = 0xff;
     private static final int OFFSET_0 = 0;
     private static final int OFFSET_1 = 1;
     private static final int OFFSET_2 = 2;
     private static final int OFFSET_3 = 3;
-    private static final int LSHIFT_0_BYTE = 0;
     private static final int LSHIFT_1_BYTE = 8;
-    private static final int LSHIFT_2_BYTE = 16;
-    private static final int LSHIFT_3_BYTE = 24;
-    private static final int PLAYER_INTERVAL_NTSC = 17;
-    private static final int PLAYER_INTERVAL_PAL = 20;
+    private static final int READ_CHUNK_SIZE = 0x10000;
+    private static final int VGM_SAMPLE_RATE = 44100;
     private static final int VGM_DEFAULT_DATA_OFFSET = 0x40;
-    private static final int VGM_1_00_EOH = 0x24;
+    private static final long SN_CLOCK_MASK = 0x3fffffffL;
+    private static final long SN_DUAL_CHIP = 0x40000000L;
+    private static final int SN_CHIPS = 2;
+    private static final byte CMD_WRITE_GG2 = (byte) 0x3f;
+    private static final byte CMD_WRITE_SN2 = (byte) 0x30;
     private static final byte CMD_WRITE_GG = (byte) 0x4f;
     private static final byte CMD_WRITE_SN = (byte) 0x50;
     private static final byte CMD_WRITE_YM2413 = (byte) 0x51;
@@ -53,37 +74,166 @@ public final class VgmPlayer implements Player {
     private static final byte CMD_WAIT_735 = (byte) 0x62;
     private static final byte CMD_WAIT_882 = (byte) 0x63;
     private static final byte CMD_EOD = (byte) 0x66;
+    private static final int CMD_WAIT_N = 0x70;
+    private static final int CMD_MASK = 0xf0;
+    private static final int WAIT_N_MASK = 0x0f;
     private static final int WAIT_735 = 735;
     private static final int WAIT_882 = 882;
+    private static final int MAX_WRITES = 64;
+    // An event is packed into a long as follows.
+    //  bit 63-24: timestamp in samples from the start
+    //  bit 23-20: event type
+    //  bit 19-16: chip
+    //  bit 15- 8: register (always 0 for SN76489)
+    //  bit  7- 0: value
+    // Waits and unknown commands use bit 15-0 as their argument.
+    private static final int TIME_SHIFT = 24;
+    private static final int TYPE_SHIFT = 20;
+    private static final int CHIP_SHIFT = 16;
+    private static final int TYPE_MASK = 0x0f;
+    private static final int CHIP_MASK = 0x0f;
+    private static final int ARGUMENT_MASK = 0xffff;
+    private static final int EVENT_WRITE = 0;
+    private static final int EVENT_WAIT = 1;
+    private static final int EVENT_END = 2;
+    private static final int EVENT_UNSUPPORTED = 3;
+    private static final int EVENT_UNKNOWN = 4;
+    private static final int INITIAL_EVENTS = 0x1000;
+    // Register images of all chips are kept every KEYFRAME_EVENTS events
+    // so that seek() replays at most KEYFRAME_EVENTS events.
+    private static final int KEYFRAME_EVENTS = 256;
+    private static final int SN_REGISTERS = 16;
+    private static final int SN_ADDRESSES = 8;
+    private static final int SN_LATCH = 0x80;
+    private static final int SN_ADDRESS_SHIFT = 4;
+    private static final int SN_ADDRESS_MASK = 0x07;
+    private static final int SN_LOW_MASK = 0x0f;
+    private static final int SN_HIGH_MASK = 0x3f;
+    // A register image holds SN_REGISTERS registers and the latched
+    // address for each chip.
+    private static final int IMAGE_ACTIVE = SN_REGISTERS;
+    private static final int IMAGE_CHIP_SIZE = SN_REGISTERS + 1;
+    private static final int IMAGE_SIZE = IMAGE_CHIP_SIZE * SN_CHIPS;
 
     private MasterChannel masterChannel = null;
-    private InputStream inputStream = null;
-    private PsgDeviceChannel psg = null;
+    private long[] events = null;
+    private int eventCount = 0;
+    private int index = 0;
+    private int loopIndex = 0;
+    private long loopTime = 0;
+    private long length = 0;
+    private int[] keyframes = null;
+    private int[] seekImage = new int[IMAGE_SIZE];
+    private Channel psg = null;
+    private PsgDeviceChannel single = null;
+    private PsgGroupChannel group = null;
+    private Device sn = null;
+    private Device sn2 = null;
+    private int[] writeAddresses = new int[MAX_WRITES];
+    private int[] snValues = new int[MAX_WRITES];
+    private int[] sn2Values = new int[MAX_WRITES];
+    private int snWrites = 0;
+    private int sn2Writes = 0;
     private int minorVersion = 0;
     private long snClock = PsgDeviceChannel.CLOCK_3_58MHZ;
     private boolean error = false;
     private boolean loop = false;
-    private long loopSkipOffset = 0;
-    private int interval = PLAYER_INTERVAL_NTSC;
-    private int wait = 0;
+    private int loopCount = 0;
+    private long timeOffset = 0;
+    private long startTime = 0;
+    private long startSample = 0;
     private int writtenSamples = 0;
 
     /**
-     * Read unsigned int value from InputStream.
-     * @param input InputStream to read
+     * Get unsigned int value from a little endian buffer.
+     * @param buffer buffer to read
+     * @param offset offset to read
      * @return read unsigned int value
+     */
+    private static long getUInt(final ByteBuffer buffer, final int offset) {
+        return (long) buffer.getInt(offset) & UINT_MASK;
+    }
+
+    /**
+     * Read all data from InputStream into a heap buffer.
+     * @param input InputStream to read
+     * @return buffer holding read data
      * @throws IOException exception on reading
      */
-    private long readUInt(final InputStream input) throws IOException {
-        byte[] buffer = new byte[UINT_SIZE];
-        if (UINT_SIZE != input.read(buffer, 0, UINT_SIZE)) {
-            throw new IOException();
+    private static ByteBuffer readAll(final InputStream input)
+            throws IOException {
+        byte[] bytes = new byte[READ_CHUNK_SIZE];
+        int length = 0;
+        for (;;) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            int read = input.read(bytes, length, bytes.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    /**
+     * Inflate a GZip compressed image into a heap buffer.
+     * @param image compressed image
+     * @return inflated image
+     * @throws IOException exception on inflating
+     */
+    private static ByteBuffer inflate(final ByteBuffer image)
+            throws IOException {
+        InputStream in;
+        if (image.hasArray()) {
+            in = new ByteArrayInputStream(image.array(),
+                    image.arrayOffset() + image.position(),
+                    image.remaining());
+        } else {
+            byte[] bytes = new byte[image.remaining()];
+            image.duplicate().get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        return readAll(new GZIPInputStream(in));
+    }
+
+    /**
+     * Queue a register write to the first SN76489. Queued writes are
+     * applied at once by flushWrites().
+     * @param value value byte to write
+     */
+    private void writeSn(final int value) {
+        if (MAX_WRITES == snWrites) {
+            flushWrites();
+        }
+        snValues[snWrites++] = value;
+    }
+
+    /**
+     * Queue a register write to the second SN76489.
+     * @see writeSn
+     * @param value value byte to write
+     */
+    private void writeSn2(final int value) {
+        if (MAX_WRITES == sn2Writes) {
+            flushWrites();
+        }
+        sn2Values[sn2Writes++] = value;
+    }
+
+    /**
+     * Apply queued register writes.
+     */
+    private void flushWrites() {
+        if (0 != snWrites) {
+            sn.writeRegisters(writeAddresses, snValues, snWrites);
+            snWrites = 0;
+        }
+        if (0 != sn2Writes) {
+            sn2.writeRegisters(writeAddresses, sn2Values, sn2Writes);
+            sn2Writes = 0;
         }
-        long l = ((long) buffer[OFFSET_0] & BYTE_MASK) << LSHIFT_0_BYTE;
-        long k = ((long) buffer[OFFSET_1] & BYTE_MASK) << LSHIFT_1_BYTE;
-        long j = ((long) buffer[OFFSET_2] & BYTE_MASK) << LSHIFT_2_BYTE;
-        long h = ((long) buffer[OFFSET_3] & BYTE_MASK) << LSHIFT_3_BYTE;
-        return h | j | k | l;
     }
 
     /**
@@ -91,79 +241,88 @@ public final class VgmPlayer implements Player {
      * @param channel master channel
      */
     public void setMasterChannel(final MasterChannel channel) {
-        psg = new PsgDeviceChannel();
-        psg.setMode(PsgDeviceChannel.MODE_SIGNED);
-        psg.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+        masterChannel = channel;
         channel.clearChannel();
-        channel.addChannel(psg);
+        psg = null;
+        createChips(1);
         channel.setPlayer(this);
-        // TODO: msec is not sufficient for NTSC (16.6... is not 17!)
-        channel.setPlayerInterval(PLAYER_INTERVAL_NTSC);
-        interval = WAIT_735;
-        Log.getLog().info("VGM: assume as NTSC");
-        masterChannel = channel;
+        channel.setScheduleMode(MasterChannel.SCHEDULE_TIMESTAMP);
+    }
+
+    /**
+     * Create SN76489 chips, and replace the PSG channel in the master
+     * channel. A single chip is played by a PsgDeviceChannel, and dual
+     * chips are mixed by a PsgGroupChannel.
+     * @param chips the number of chips, 1 or SN_CHIPS
+     */
+    private void createChips(final int chips) {
+        Channel channel;
+        if (1 == chips) {
+            single = new PsgDeviceChannel();
+            single.setMode(PsgDeviceChannel.MODE_SIGNED);
+            single.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+            group = null;
+            sn = single;
+            sn2 = null;
+            channel = single;
+        } else {
+            group = new PsgGroupChannel(chips);
+            group.setMode(PsgDeviceChannel.MODE_SIGNED);
+            group.setDevice(PsgDeviceChannel.DEVICE_SN76489);
+            single = null;
+            sn = group.getDevice(0);
+            sn2 = group.getDevice(1);
+            channel = group;
+        }
+        if (null != psg) {
+            masterChannel.removeChannel(psg);
+        }
+        masterChannel.addChannel(channel);
+        psg = channel;
     }
 
     /**
      * @see Player
      */
     public void updateDevice() {
-        if (error || (inputStream == null)) {
-            return;
-        }
-        if (wait > 0) {
-            wait -= interval;
+        if (error || (null == events)) {
             return;
         }
+        long now = masterChannel.getSamplePosition();
+        long rate = masterChannel.getSampleRate();
+        long[] list = events;
+        int i = index;
         try {
             while (true) {
-                byte[] command = new byte[1];
-                byte[] arguments = new byte[2];
-                inputStream.read(command, 0, 1);
-                switch (command[0]) {
-                case CMD_WRITE_GG:
-                    inputStream.read(command, 0, 1);
-                    psg.writeRegister(0, (int) ((long) command[0] & BYTE_MASK));
-                    writtenSamples++;
-                    break;
-                case CMD_WRITE_SN:
-                    inputStream.read(command, 0, 1);
-                    psg.writeRegister(0, (int) ((long) command[0] & BYTE_MASK));
+                long event = list[i];
+                long time = (event >>> TIME_SHIFT) + timeOffset - startTime;
+                long sample = startSample + time * rate / VGM_SAMPLE_RATE;
+                if (sample > now) {
+                    masterChannel.postPlayerUpdate(sample);
+                    return;
+                }
+                i++;
+                int argument = (int) event & ARGUMENT_MASK;
+                switch ((int) (event >> TYPE_SHIFT) & TYPE_MASK) {
+                case EVENT_WRITE:
+                    if (0 == ((int) (event >> CHIP_SHIFT) & CHIP_MASK)) {
+                        writeSn(argument & BYTE_MASK);
+                    } else if (null != sn2) {
+                        writeSn2(argument & BYTE_MASK);
+                    }
                     writtenSamples++;
                     break;
-                case CMD_WRITE_YM2413:
-                case CMD_WRITE_YM2612A:
-                case CMD_WRITE_YM2612B:
-                case CMD_WRITE_YM2151:
+                case EVENT_UNSUPPORTED:
                     error = true;
                     Log.getLog().warn("VGM: FM sound is not supported");
                     return;
-                case CMD_WAIT_NNNN:
-                    inputStream.read(arguments, 0, 2);
-                    wait += (int) (((long) arguments[0] & BYTE_MASK)
-                            | (((long) arguments[1] & BYTE_MASK)
-                                    << LSHIFT_1_BYTE));
-                    return;
-                case CMD_WAIT_735:
-                    wait += WAIT_735;
-                    masterChannel.setPlayerInterval(PLAYER_INTERVAL_NTSC);
-                    if (interval != WAIT_735) {
-                        Log.getLog().info("VGM: detect as NTSC");
-                        interval = WAIT_735;
-                    }
-                    return;
-                case CMD_WAIT_882:
-                    wait += WAIT_882;
-                    masterChannel.setPlayerInterval(PLAYER_INTERVAL_PAL);
-                    if (interval != WAIT_882) {
-                        Log.getLog().info("VGM: detect as PAL");
-                        interval = WAIT_882;
-                    }
-                    return;
-                case CMD_EOD:
+                case EVENT_WAIT:
+                    break;
+                case EVENT_END:
                     if (loop) {
-                        inputStream.reset();
-                        inputStream.skip(loopSkipOffset);
+                        i = loopIndex;
+                        timeOffset += length - loopTime;
+                        loopCount++;
                         Log.getLog().info("VGM: loop");
                     } else {
                         // set error flag to stop music
@@ -173,16 +332,276 @@ public final class VgmPlayer implements Player {
                     break;
                 default:
                     Log.getLog().warn("VGM: unknown command 0x"
-                            + Integer.toHexString((int)
-                                    ((long) command[0] & BYTE_MASK)));
+                            + Integer.toHexString(argument));
                     Log.getLog().warn("written samples = " + writtenSamples);
-                    return;
+                    break;
                 }
             }
-        } catch (Exception e) {
-            Log.getLog().error("VGM: " + e.toString());
-            error = true;
+        } finally {
+            index = i;
+            // Writes at the same sample are applied at once.
+            flushWrites();
+        }
+    }
+
+    /**
+     * Get the length of the music without loops.
+     * @return length in samples at 44100Hz
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Seek to a position. The position after the end goes around the loop
+     * if the music has one. Register values at the position are written
+     * to chips, while other chip states, e.g., tone phases, are kept.
+     * The music continues from the current sample position of the master
+     * channel. This method must be called from the render thread.
+     * @param sample position in samples at 44100Hz from the start
+     */
+    public void seek(final long sample) {
+        if (null == events) {
+            return;
+        }
+        long target = Math.max(sample, 0);
+        loopCount = 0;
+        timeOffset = 0;
+        if (loop && (target >= length)) {
+            long loopLength = length - loopTime;
+            long loops = (target - loopTime) / loopLength;
+            loopCount = (int) loops;
+            timeOffset = loops * loopLength;
+            target -= timeOffset;
+        }
+
+        // Find the first event at or after the target.
+        int low = 0;
+        int high = eventCount - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if ((events[middle] >>> TIME_SHIFT) < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        // Replay events before it from the nearest keyframe.
+        int frame = low / KEYFRAME_EVENTS;
+        System.arraycopy(keyframes, frame * IMAGE_SIZE, seekImage, 0,
+                IMAGE_SIZE);
+        for (int i = frame * KEYFRAME_EVENTS; i < low; i++) {
+            updateImage(seekImage, events[i]);
+        }
+        writeImage(seekImage, 0);
+        if (null != sn2) {
+            writeImage(seekImage, 1);
         }
+        flushWrites();
+        index = low;
+        startTime = target + timeOffset;
+        startSample = masterChannel.getSamplePosition();
+        // The pending call back is for the old position.
+        masterChannel.clearSchedule();
+        error = false;
+    }
+
+    /**
+     * Apply an event to a register image.
+     * @param target register image to update
+     * @param event event to apply
+     */
+    private static void updateImage(final int[] target, final long event) {
+        if (EVENT_WRITE != ((int) (event >> TYPE_SHIFT) & TYPE_MASK)) {
+            return;
+        }
+        int argument = (int) event & ARGUMENT_MASK;
+        int base = ((int) (event >> CHIP_SHIFT) & CHIP_MASK) * IMAGE_CHIP_SIZE;
+        if (0 != (argument & SN_LATCH)) {
+            int address = (argument >> SN_ADDRESS_SHIFT) & SN_ADDRESS_MASK;
+            target[base + SN_ADDRESSES + address] = argument & SN_LOW_MASK;
+            target[base + IMAGE_ACTIVE] = address;
+        } else {
+            target[base + target[base + IMAGE_ACTIVE]] =
+                argument & SN_HIGH_MASK;
+        }
+    }
+
+    /**
+     * Queue register writes which reproduce a register image of a chip.
+     * Each register is latched and written with its high bits, and the
+     * latched register is latched again at last.
+     * @param source register image to write
+     * @param chip chip to write
+     */
+    private void writeImage(final int[] source, final int chip) {
+        int base = chip * IMAGE_CHIP_SIZE;
+        for (int address = 0; address < SN_ADDRESSES; address++) {
+            int low = source[base + SN_ADDRESSES + address] & SN_LOW_MASK;
+            int high = source[base + address] & SN_HIGH_MASK;
+            int latch = SN_LATCH | (address << SN_ADDRESS_SHIFT) | low;
+            if (0 == chip) {
+                writeSn(latch);
+                writeSn(high);
+            } else {
+                writeSn2(latch);
+                writeSn2(high);
+            }
+        }
+        int address = source[base + IMAGE_ACTIVE];
+        int latch = SN_LATCH | (address << SN_ADDRESS_SHIFT)
+                | (source[base + SN_ADDRESSES + address] & SN_LOW_MASK);
+        if (0 == chip) {
+            writeSn(latch);
+        } else {
+            writeSn2(latch);
+        }
+    }
+
+    /**
+     * Append an event to the compiled events. A keyframe is taken before
+     * every KEYFRAME_EVENTS events.
+     * @param current register image before the event, which is updated
+     * @param time timestamp in samples
+     * @param type event type
+     * @param chip target chip
+     * @param argument value or argument of the event
+     */
+    private void addEvent(final int[] current, final long time,
+            final int type, final int chip, final int argument) {
+        if (0 == (eventCount % KEYFRAME_EVENTS)) {
+            int offset = (eventCount / KEYFRAME_EVENTS) * IMAGE_SIZE;
+            if (offset == keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes, offset * 2);
+            }
+            System.arraycopy(current, 0, keyframes, offset, IMAGE_SIZE);
+        }
+        if (eventCount == events.length) {
+            events = Arrays.copyOf(events, eventCount * 2);
+        }
+        long event = (time << TIME_SHIFT) | (type << TYPE_SHIFT)
+                | (chip << CHIP_SHIFT) | argument;
+        events[eventCount++] = event;
+        updateImage(current, event);
+    }
+
+    /**
+     * Compile VGM commands into events.
+     * @param in file image
+     * @param end offset next to the last command
+     * @param loopStart offset of the loop point, or end if no loop
+     */
+    private void compile(final ByteBuffer in, final int end,
+            final long loopStart) {
+        events = new long[INITIAL_EVENTS];
+        eventCount = 0;
+        keyframes = new int[IMAGE_SIZE];
+        int[] current = new int[IMAGE_SIZE];
+        for (int i = 0; i < SN_REGISTERS; i++) {
+            current[i] = sn.readRegister(i);
+            if (null != sn2) {
+                current[IMAGE_CHIP_SIZE + i] = sn2.readRegister(i);
+            }
+        }
+        loopIndex = -1;
+        long time = 0;
+        int pos = VGM_DEFAULT_DATA_OFFSET;
+        int type;
+        do {
+            if ((loopIndex < 0) && (pos >= loopStart)) {
+                loopIndex = eventCount;
+                loopTime = time;
+            }
+            type = EVENT_END;
+            int chip = 0;
+            int argument = 0;
+            byte command = CMD_EOD;
+            if (pos < end) {
+                command = in.get(pos++);
+            }
+            switch (command) {
+            case CMD_WRITE_GG2:
+            case CMD_WRITE_SN2:
+                if (pos < end) {
+                    type = EVENT_WRITE;
+                    chip = 1;
+                    argument = in.get(pos++) & BYTE_MASK;
+                }
+                break;
+            case CMD_WRITE_GG:
+            case CMD_WRITE_SN:
+                if (pos < end) {
+                    type = EVENT_WRITE;
+                    argument = in.get(pos++) & BYTE_MASK;
+                }
+                break;
+            case CMD_WRITE_YM2413:
+            case CMD_WRITE_YM2612A:
+            case CMD_WRITE_YM2612B:
+            case CMD_WRITE_YM2151:
+                type = EVENT_UNSUPPORTED;
+                break;
+            case CMD_WAIT_NNNN:
+                if (pos + 1 < end) {
+                    type = EVENT_WAIT;
+                    argument = (in.get(pos) & BYTE_MASK)
+                            | ((in.get(pos + 1) & BYTE_MASK) << LSHIFT_1_BYTE);
+                    pos += 2;
+                }
+                break;
+            case CMD_WAIT_735:
+                type = EVENT_WAIT;
+                argument = WAIT_735;
+                break;
+            case CMD_WAIT_882:
+                type = EVENT_WAIT;
+                argument = WAIT_882;
+                break;
+            case CMD_EOD:
+                break;
+            default:
+                argument = command & BYTE_MASK;
+                if (CMD_WAIT_N == (argument & CMD_MASK)) {
+                    type = EVENT_WAIT;
+                    argument = (argument & WAIT_N_MASK) + 1;
+                } else {
+                    type = EVENT_UNKNOWN;
+                }
+                break;
+            }
+            addEvent(current, time, type, chip, argument);
+            if (EVENT_WAIT == type) {
+                time += argument;
+            }
+        } while ((EVENT_END != type) && (EVENT_UNSUPPORTED != type));
+        events = Arrays.copyOf(events, eventCount);
+        length = time;
+        // A loop without any wait never yields.
+        loop = (loopIndex >= 0) && (loopTime < length);
+        index = 0;
+        timeOffset = 0;
+        startTime = 0;
+        startSample = masterChannel.getSamplePosition();
+        masterChannel.clearSchedule();
+        loopCount = 0;
+        error = false;
+    }
+
+    /**
+     * @see Player
+     * @return loop count
+     */
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * @see Player
+     * @return true if nothing is left to play
+     */
+    public boolean isFinished() {
+        return error;
     }
 
     /**
@@ -192,49 +611,65 @@ public final class VgmPlayer implements Player {
      */
     public boolean play(final InputStream input) {
         try {
-            // check gzip or not
-            byte[] gzHeader = new byte[2];
-            input.mark(2);
-            if (2 != input.read(gzHeader, 0, 2)) {
-                return false;
+            if (input instanceof FileInputStream) {
+                FileChannel channel = ((FileInputStream) input).getChannel();
+                long offset = channel.position();
+                return play(channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        channel.size() - offset));
             }
-            input.reset();
-            InputStream in = input;
-            if ((GZ_ID1 == gzHeader[0]) && (GZ_ID2 == gzHeader[1])) {
+            return play(readAll(input));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decode and play a file image from the current position of a buffer,
+     * e.g., a MappedByteBuffer of a file. The buffer must not be modified
+     * while playing.
+     * @param input file image to play
+     * @return success or not
+     */
+    public boolean play(final ByteBuffer input) {
+        try {
+            // check gzip or not
+            ByteBuffer image = input.slice();
+            if ((image.remaining() >= GZ_ID_SIZE)
+                    && (GZ_ID1 == image.get(OFFSET_0))
+                    && (GZ_ID2 == image.get(OFFSET_1))) {
                 Log.getLog().info("VGM: GZip compressed, aka VGZ");
-                in = new BufferedInputStream(new GZIPInputStream(input));
+                image = inflate(image);
             }
+            image.order(ByteOrder.LITTLE_ENDIAN);
 
             // check vgm header
-            byte[] vgmHeader = new byte[VGM_IDENT_SIZE];
-            if ((VGM_IDENT_SIZE != in.read(vgmHeader, 0, VGM_IDENT_SIZE))
-                    || (vgmHeader[OFFSET_0] != VGM_ID1)
-                    || (vgmHeader[OFFSET_1] != VGM_ID2)
-                    || (vgmHeader[OFFSET_2] != VGM_ID3)
-                    || (vgmHeader[OFFSET_3] != VGM_ID4)) {
+            if ((image.remaining() < VGM_DEFAULT_DATA_OFFSET)
+                    || (image.get(OFFSET_0) != VGM_ID1)
+                    || (image.get(OFFSET_1) != VGM_ID2)
+                    || (image.get(OFFSET_2) != VGM_ID3)
+                    || (image.get(OFFSET_3) != VGM_ID4)) {
                 Log.getLog().info("VGM: Invalid IDENT");
                 return false;
             }
             Log.getLog().info("VGM: detect VGM indent");
 
             // EoF offset
-            long vgmLength = readUInt(in) + UINT_SIZE;
+            long vgmLength = getUInt(image, VGM_EOF_OFFSET) + VGM_EOF_OFFSET;
             Log.getLog().info("VGM: file length = " + vgmLength);
 
             // Version
-            byte[] vgmVersion = new byte[VGM_VERSION_SIZE];
-            if ((VGM_VERSION_SIZE != in.read(vgmVersion, 0, VGM_VERSION_SIZE))
-                    || (vgmVersion[OFFSET_3] != 0)
-                    || (vgmVersion[OFFSET_2] != 0)
-                    || (vgmVersion[OFFSET_1] != 1)) {
+            int version = VGM_VERSION_OFFSET;
+            if ((image.get(version + OFFSET_3) != 0)
+                    || (image.get(version + OFFSET_2) != 0)
+                    || (image.get(version + OFFSET_1) != 1)) {
                 Log.getLog().error("VGM: version is not 1.x ("
-                        + vgmVersion[OFFSET_3] + "."
-                        + vgmVersion[OFFSET_2] + "."
-                        + vgmVersion[OFFSET_1] + "."
-                        + vgmVersion[OFFSET_0] + ")");
+                        + image.get(version + OFFSET_3) + "."
+                        + image.get(version + OFFSET_2) + "."
+                        + image.get(version + OFFSET_1) + "."
+                        + image.get(version + OFFSET_0) + ")");
                 return false;
             }
-            minorVersion = (int) ((long) vgmVersion[OFFSET_0] & BYTE_MASK);
+            minorVersion = image.get(version + OFFSET_0) & BYTE_MASK;
             switch (minorVersion) {
             case VERSION_1_00:
                 Log.getLog().info("VGM: version 1.00");
@@ -256,18 +691,29 @@ public final class VgmPlayer implements Player {
 
             // clock settings
             long clock;
-            clock = readUInt(in);
+            clock = getUInt(image, VGM_SN_CLOCK_OFFSET);
             if (0 == clock) {
                 Log.getLog().warn("VGM: SN76489 is not used");
                 return false;
             }
+            if (0 != (clock & SN_DUAL_CHIP)) {
+                Log.getLog().info("VGM: dual SN76489");
+                createChips(SN_CHIPS);
+            } else if (null != sn2) {
+                createChips(1);
+            }
+            clock &= SN_CLOCK_MASK;
             Log.getLog().info("VGM: SN76489 clock is " + clock + " Hz");
             if (clock != snClock) {
                 Log.getLog().info("VGM:   not " + snClock + " Hz");
                 snClock = clock;
             }
-            psg.setClock((int) snClock);
-            clock = readUInt(in);
+            if (null != group) {
+                group.setClock((int) snClock);
+            } else {
+                single.setClock((int) snClock);
+            }
+            clock = getUInt(image, VGM_YM2413_CLOCK_OFFSET);
             if (0 != clock) {
                 // TODO: support YM2413
                 Log.getLog().info("VGM: YM2413 clock is " + clock + " Hz");
@@ -275,27 +721,24 @@ public final class VgmPlayer implements Player {
             }
 
             // GD3 tag (TODO: support GD3 tag)
-            long gd3Offset = readUInt(in);
+            long gd3Offset = getUInt(image, VGM_GD3_OFFSET);
             Log.getLog().info("VGM: GD3 offset = " + gd3Offset);
 
             // check offsets
-            long totalSamples = readUInt(in);
-            long loopOffset = readUInt(in);
-            long loopSamples = readUInt(in);
+            long totalSamples = getUInt(image, VGM_TOTAL_SAMPLES_OFFSET);
+            long loopOffset = getUInt(image, VGM_LOOP_OFFSET);
+            long loopSamples = getUInt(image, VGM_LOOP_SAMPLES_OFFSET);
             Log.getLog().info("VGM: Total # samples = " + totalSamples);
             Log.getLog().info("VGM: Loop offset = " + loopOffset);
             Log.getLog().info("VGM: Loop # samples = " + loopSamples);
-            if (0 != loopOffset) {
-                loop = true;
-                loopSkipOffset = loopOffset - VGM_DEFAULT_DATA_OFFSET;
+            int end = image.limit();
+            if ((VGM_EOF_OFFSET < vgmLength) && (vgmLength < end)) {
+                end = (int) vgmLength;
             }
-
-            // 1.00 complete
-            if (minorVersion == VERSION_1_00) {
-                in.skip(VGM_DEFAULT_DATA_OFFSET - VGM_1_00_EOH);
-                in.mark((int) (vgmLength - VGM_DEFAULT_DATA_OFFSET));
-                inputStream = in;
-                return true;
+            // The loop offset is relative to its own field.
+            long loopStart = loopOffset + VGM_LOOP_OFFSET;
+            if ((0 == loopOffset) || (loopStart < VGM_DEFAULT_DATA_OFFSET)) {
+                loopStart = end;
             }
 
             // 1.01 features
@@ -303,16 +746,11 @@ public final class VgmPlayer implements Player {
 
             // 1.10 features
             // TODO
-            if (minorVersion <= VERSION_1_50) {
-                in.skip(VGM_DEFAULT_DATA_OFFSET - VGM_1_00_EOH);
-                in.mark((int) (vgmLength - VGM_DEFAULT_DATA_OFFSET));
-                inputStream = in;
-                return true;
-            }
 
             // 1.50 features
             // TODO
-            return false;
+            compile(image, end, loopStart);
+            return true;
         } catch (Exception e) {
             return false;
         }